@@ -0,0 +1,215 @@
+package com.joliciel.talismane.sr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.joliciel.talismane.TalismaneException;
+import com.joliciel.talismane.TalismaneSession;
+import com.joliciel.talismane.parser.ParseConfiguration;
+import com.joliciel.talismane.parser.ParserAnnotatedCorpusReader;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * CoNLL sentences for benchmarking, either from the bundled
+ * <code>sample.conll</code> or generated synthetically. Sentences are returned
+ * as lines in Talismane's default CoNLL layout, and read into parse
+ * configurations by the session's own corpus reader, so that each benchmark
+ * invocation can work on fresh configurations if it modifies them.<br/>
+ * <br/>
+ * The session is described in <code>benchmark.conf</code>, which expects the
+ * benchmarks to be run from the <code>benchmarks</code> directory.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class BenchmarkCorpus {
+  private static final String[] GENDERS = { "m", "f", "n" };
+  private static final String[] NUMBERS = { "sg", "pl" };
+  private static final String[] CASES = { "nom", "gen", "dat", "acc", "ins", "loc" };
+  private static final String[] OTHER_TAGS = { "Adv", "Prep", "V_aux", "Z" };
+  static final String SESSION_ID = "sr";
+
+  private BenchmarkCorpus() {
+  }
+
+  /**
+   * The bundled sample, repeated until it contains at least minSentences
+   * sentences.
+   */
+  static List<List<String>> sample(int minSentences) throws IOException {
+    List<List<String>> sentences = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(BenchmarkCorpus.class.getResourceAsStream("/sample.conll"), StandardCharsets.UTF_8))) {
+      List<String> lines = new ArrayList<>();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().length() == 0) {
+          if (lines.size() > 0)
+            sentences.add(lines);
+          lines = new ArrayList<>();
+        } else {
+          lines.add(line);
+        }
+      }
+      if (lines.size() > 0)
+        sentences.add(lines);
+    }
+    List<List<String>> corpus = new ArrayList<>();
+    while (corpus.size() < minSentences)
+      corpus.addAll(sentences);
+    return corpus;
+  }
+
+  /**
+   * Generate sentences of a given length, each with a single main verb, where
+   * each adjective preceding the verb is attached to it with a projectified
+   * DepNAdj-nproj arc with probability nprojDensity.
+   */
+  static List<List<String>> synthetic(int sentenceCount, int sentenceLength, double nprojDensity, long seed) {
+    Random random = new Random(seed);
+    List<List<String>> corpus = new ArrayList<>();
+    for (int s = 0; s < sentenceCount; s++) {
+      int length = Math.max(3, sentenceLength);
+      int verb = 1 + length / 3 + random.nextInt(Math.max(1, length / 3));
+      String[] tags = new String[length + 1];
+      String[] morphs = new String[length + 1];
+      int[] heads = new int[length + 1];
+      String[] labels = new String[length + 1];
+      int[] nonProjHeads = new int[length + 1];
+
+      for (int i = 1; i <= length; i++) {
+        if (i == verb) {
+          tags[i] = "V_main";
+        } else {
+          int choice = random.nextInt(10);
+          tags[i] = choice < 4 ? "N" : choice < 7 ? "A" : choice < 8 ? "P" : OTHER_TAGS[random.nextInt(OTHER_TAGS.length)];
+        }
+        morphs[i] = "N".equals(tags[i]) || "A".equals(tags[i]) || "P".equals(tags[i])
+            ? "g=" + GENDERS[random.nextInt(GENDERS.length)] + "|n=" + NUMBERS[random.nextInt(NUMBERS.length)] + "|c="
+                + CASES[random.nextInt(CASES.length)]
+            : "_";
+      }
+
+      for (int i = 1; i <= length; i++) {
+        heads[i] = verb;
+        switch (tags[i]) {
+        case "V_main":
+          heads[i] = 0;
+          labels[i] = "Root";
+          break;
+        case "N":
+          labels[i] = random.nextBoolean() ? "Suj" : "ObjDir";
+          break;
+        case "P":
+          labels[i] = "Suj";
+          break;
+        case "A":
+          labels[i] = "DepNAdj";
+          // attach to the next noun if there is one
+          for (int j = i + 1; j <= length; j++) {
+            if ("N".equals(tags[j])) {
+              heads[i] = j;
+              morphs[i] = morphs[j];
+              break;
+            }
+          }
+          break;
+        case "Adv":
+          labels[i] = "DepVAdv";
+          break;
+        case "Prep":
+          labels[i] = "DepVPrep";
+          break;
+        case "V_aux":
+          labels[i] = "AuxV";
+          break;
+        default:
+          labels[i] = "Ponct";
+        }
+        nonProjHeads[i] = heads[i];
+      }
+
+      // projectify some of the adjectives preceding the verb
+      for (int i = 1; i < verb; i++) {
+        if ("A".equals(tags[i]) && random.nextDouble() < nprojDensity) {
+          List<Integer> nouns = new ArrayList<>();
+          for (int j = 1; j <= length; j++) {
+            if ("N".equals(tags[j]) && j != i)
+              nouns.add(j);
+          }
+          if (nouns.size() == 0)
+            continue;
+          Collections.shuffle(nouns, random);
+          nonProjHeads[i] = nouns.get(0);
+          morphs[i] = morphs[nouns.get(0)];
+          heads[i] = verb;
+          labels[i] = "DepNAdj-nproj";
+        }
+      }
+
+      List<String> lines = new ArrayList<>();
+      for (int i = 1; i <= length; i++) {
+        lines.add(i + "\tw" + i + "\tw" + i + "\t" + tags[i] + "\t" + tags[i] + "\t" + morphs[i] + "\t" + nonProjHeads[i] + "\t" + labels[i] + "\t"
+            + heads[i] + "\t" + labels[i]);
+      }
+      corpus.add(lines);
+    }
+    return corpus;
+  }
+
+  /**
+   * The session used by the benchmarks.
+   */
+  static TalismaneSession session() throws IOException, ReflectiveOperationException {
+    return new TalismaneSession(ConfigFactory.load("benchmark"), SESSION_ID);
+  }
+
+  /**
+   * Read each sentence's lines into a parse configuration, as the session's
+   * parser corpus reader would read them from a file.
+   */
+  static List<ParseConfiguration> read(List<List<String>> sentences, TalismaneSession session)
+      throws IOException, ReflectiveOperationException, TalismaneException {
+    StringBuilder sb = new StringBuilder();
+    for (List<String> lines : sentences) {
+      for (String line : lines)
+        sb.append(line).append('\n');
+      sb.append('\n');
+    }
+    Config inputConfig = session.getConfig().getConfig("talismane.core." + session.getSessionId() + ".parser.input");
+    ParserAnnotatedCorpusReader corpusReader = ParserAnnotatedCorpusReader.getCorpusReader(new StringReader(sb.toString()), inputConfig, session);
+    List<ParseConfiguration> configurations = new ArrayList<>(sentences.size());
+    while (corpusReader.hasNextConfiguration())
+      configurations.add(corpusReader.nextConfiguration());
+    return configurations;
+  }
+
+  /**
+   * A copy of the sentences simulating a parser's guesses: with probability
+   * errorRate, a token's non-projective head is replaced by its projective
+   * head.
+   */
+  static List<List<String>> perturb(List<List<String>> sentences, double errorRate, long seed) {
+    Random random = new Random(seed);
+    List<List<String>> perturbed = new ArrayList<>();
+    for (List<String> sentence : sentences) {
+      List<String> lines = new ArrayList<>();
+      for (String line : sentence) {
+        String[] columns = line.split("\t", -1);
+        if (columns.length >= 10 && random.nextDouble() < errorRate)
+          columns[6] = columns[8];
+        lines.add(String.join("\t", columns));
+      }
+      perturbed.add(lines);
+    }
+    return perturbed;
+  }
+}
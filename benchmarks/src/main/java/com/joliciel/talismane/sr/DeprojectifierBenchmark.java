@@ -0,0 +1,119 @@
+package com.joliciel.talismane.sr;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.joliciel.talismane.TalismaneException;
+import com.joliciel.talismane.TalismaneSession;
+import com.joliciel.talismane.parser.ParseConfiguration;
+
+/**
+ * Throughput of {@link Deprojectifier#onNextParseConfiguration}, in sentences
+ * per second, on parse configurations read from the bundled sample and from
+ * synthetic sentences of configurable length and non-projective arc density.
+ * As de-projectification adds arcs to the configurations, they are read afresh
+ * before each invocation, outside the measured time. Run with
+ * <code>-prof gc</code> to report the allocation rate.
+ *
+ * @author Assaf Urieli
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeprojectifierBenchmark {
+  static final int SENTENCES = 1000;
+
+  @State(Scope.Thread)
+  public static class SampleState {
+    TalismaneSession session;
+    Deprojectifier deprojectifier;
+    List<List<String>> sentences;
+    List<ParseConfiguration> configurations;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException, ReflectiveOperationException {
+      session = BenchmarkCorpus.session();
+      deprojectifier = new Deprojectifier(session);
+      sentences = BenchmarkCorpus.sample(SENTENCES).subList(0, SENTENCES);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException, ReflectiveOperationException, TalismaneException {
+      configurations = BenchmarkCorpus.read(sentences, session);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class SyntheticState {
+    @Param({ "20", "50", "150" })
+    int sentenceLength;
+
+    @Param({ "0.1", "0.5", "1.0" })
+    double nprojDensity;
+
+    TalismaneSession session;
+    Deprojectifier deprojectifier;
+    List<List<String>> sentences;
+    List<ParseConfiguration> configurations;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException, ReflectiveOperationException {
+      session = BenchmarkCorpus.session();
+      deprojectifier = new Deprojectifier(session);
+      sentences = BenchmarkCorpus.synthetic(SENTENCES, sentenceLength, nprojDensity, 42L);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException, ReflectiveOperationException, TalismaneException {
+      configurations = BenchmarkCorpus.read(sentences, session);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SENTENCES)
+  public void sample(SampleState state, Blackhole blackhole) throws TalismaneException, IOException {
+    for (ParseConfiguration configuration : state.configurations) {
+      state.deprojectifier.onNextParseConfiguration(configuration);
+      blackhole.consume(configuration);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SENTENCES)
+  public void synthetic(SyntheticState state, Blackhole blackhole) throws TalismaneException, IOException {
+    for (ParseConfiguration configuration : state.configurations) {
+      state.deprojectifier.onNextParseConfiguration(configuration);
+      blackhole.consume(configuration);
+    }
+  }
+
+  /**
+   * Building the per-sentence graph alone, to separate its cost from that of
+   * the candidate search.
+   */
+  @Benchmark
+  @OperationsPerInvocation(SENTENCES)
+  public void buildGraph(SyntheticState state, Blackhole blackhole) {
+    for (ParseConfiguration configuration : state.configurations)
+      blackhole.consume(SentenceGraph.of(configuration));
+  }
+}
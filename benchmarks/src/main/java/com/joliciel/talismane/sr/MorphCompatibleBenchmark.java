@@ -0,0 +1,79 @@
+package com.joliciel.talismane.sr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.joliciel.talismane.TalismaneException;
+import com.joliciel.talismane.TalismaneSession;
+import com.joliciel.talismane.parser.ParseConfiguration;
+import com.joliciel.talismane.posTagger.PosTaggedToken;
+
+/**
+ * Throughput of {@link Deprojectifier#morphCompatible}, in pairs per second,
+ * on the pos-tagged tokens of the bundled sample: every noun or pronoun of a
+ * sentence paired with every adjective or numeral of the same sentence, as the
+ * candidate search would pair them.
+ *
+ * @author Assaf Urieli
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MorphCompatibleBenchmark {
+  static final int PAIRS = 10000;
+
+  Deprojectifier deprojectifier;
+  PosTaggedToken[] heads = new PosTaggedToken[PAIRS];
+  PosTaggedToken[] deps = new PosTaggedToken[PAIRS];
+
+  @Setup
+  public void setup() throws IOException, ReflectiveOperationException, TalismaneException {
+    TalismaneSession session = BenchmarkCorpus.session();
+    deprojectifier = new Deprojectifier(session);
+    List<ParseConfiguration> configurations = BenchmarkCorpus.read(BenchmarkCorpus.sample(1), session);
+    List<PosTaggedToken[]> pairs = new ArrayList<>();
+    for (ParseConfiguration configuration : configurations) {
+      for (PosTaggedToken head : configuration.getPosTagSequence()) {
+        String headTag = head.getTag().getCode();
+        if (!"N".equals(headTag) && !"P".equals(headTag))
+          continue;
+        for (PosTaggedToken dep : configuration.getPosTagSequence()) {
+          String depTag = dep.getTag().getCode();
+          if ("A".equals(depTag) || "Num".equals(depTag))
+            pairs.add(new PosTaggedToken[] { head, dep });
+        }
+      }
+    }
+    for (int i = 0; i < PAIRS; i++) {
+      PosTaggedToken[] pair = pairs.get(i % pairs.size());
+      heads[i] = pair[0];
+      deps[i] = pair[1];
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public void morphCompatible(Blackhole blackhole) {
+    for (int i = 0; i < PAIRS; i++)
+      blackhole.consume(deprojectifier.morphCompatible(heads[i], deps[i]));
+  }
+}
@@ -0,0 +1,85 @@
+package com.joliciel.talismane.sr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.joliciel.talismane.TalismaneException;
+import com.joliciel.talismane.TalismaneSession;
+import com.joliciel.talismane.parser.ParseConfiguration;
+
+/**
+ * Throughput of {@link NonProjectiveEvaluator#onParseEnd}, in sentences per
+ * second, comparing parse configurations read from synthetic gold sentences to
+ * configurations read from a perturbed copy. The evaluator's results are
+ * written to a temporary directory, deleted at the end of the trial.
+ *
+ * @author Assaf Urieli
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NonProjectiveEvaluatorBenchmark {
+  static final int SENTENCES = 1000;
+
+  @Param({ "20", "50", "150" })
+  int sentenceLength;
+
+  @Param({ "0.1", "0.5", "1.0" })
+  double nprojDensity;
+
+  File outDir;
+  NonProjectiveEvaluator evaluator;
+  List<ParseConfiguration> gold;
+  List<ParseConfiguration> guesses;
+
+  @Setup
+  public void setup() throws IOException, ReflectiveOperationException, TalismaneException {
+    TalismaneSession session = BenchmarkCorpus.session();
+    outDir = Files.createTempDirectory("nproj-benchmark").toFile();
+    evaluator = new NonProjectiveEvaluator(outDir, session);
+    List<List<String>> sentences = BenchmarkCorpus.synthetic(SENTENCES, sentenceLength, nprojDensity, 42L);
+    gold = BenchmarkCorpus.read(sentences, session);
+    guesses = BenchmarkCorpus.read(BenchmarkCorpus.perturb(sentences, 0.2, 43L), session);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    evaluator.onEvaluationComplete();
+    File[] files = outDir.listFiles();
+    if (files != null) {
+      for (File file : files)
+        file.delete();
+    }
+    outDir.delete();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SENTENCES)
+  public NonProjectiveEvaluator onParseEnd() throws TalismaneException, IOException {
+    for (int i = 0; i < SENTENCES; i++)
+      evaluator.onParseEnd(gold.get(i), Collections.singletonList(guesses.get(i)));
+    return evaluator;
+  }
+}
@@ -0,0 +1,273 @@
+package com.joliciel.talismane.sr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.joliciel.talismane.TalismaneException;
+import com.joliciel.talismane.TalismaneSession;
+import com.joliciel.talismane.parser.ParserTrainer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Trains a parser model for each combination of feature set and dependency
+ * label set in a single JVM, several models at a time. The training corpus is
+ * read into memory once and shared by all trainings.<br/>
+ * <br/>
+ * Usage:
+ *
+ * <pre>
+ * java -Dconfig.file=conf/talismane-sr-train.conf -cp talismane_sr-0.0.1-SNAPSHOT.jar com.joliciel.talismane.sr.AblationRunner --trainFile=corpus-proj/train-proj.conll --outDir=ablation/
+ * </pre>
+ *
+ * Other options are:
+ * <ul>
+ * <li>features: a comma-separated list of feature files, by default every
+ * <code>parser_sr*.txt</code> file in the language pack</li>
+ * <li>depLabels: a comma-separated list of dependency label files, by default
+ * every <code>depLabels_sr_nproj_*.txt</code> file in the language pack</li>
+ * <li>languagePack: the language pack directory (default languagePack/)</li>
+ * <li>sessionId: the session whose settings are used as a basis for each
+ * training (default sr)</li>
+ * <li>encoding: the training file encoding (default UTF-8)</li>
+ * </ul>
+ * Each variant is trained in its own {@link TalismaneSession}, in which
+ * <code>parser.train.features</code>, <code>parser.dependency-labels</code>
+ * and <code>parser.train.model</code> are overridden. Models are written to
+ * <code>[outDir]/[features]_[labels].zip</code>, e.g.
+ * <code>sr+cn_A.zip</code>, and the time spent for each variant to
+ * <code>[outDir]/ablation-timings.csv</code>. The number of models trained
+ * concurrently is set in <code>talismane.serbian.ablation.threads</code>.
+ *
+ * @author Assaf Urieli
+ *
+ */
+public class AblationRunner {
+  private static final Logger LOG = LoggerFactory.getLogger(AblationRunner.class);
+
+  private final Config config;
+  private final String sessionId;
+  private final String corpus;
+  private final int threads;
+
+  /**
+   * A single feature set and dependency label set to train.
+   */
+  static final class Variant {
+    final String name;
+    final File features;
+    final File dependencyLabels;
+
+    Variant(File features, File dependencyLabels) {
+      this.features = features;
+      this.dependencyLabels = dependencyLabels;
+      String featureName = baseName(features);
+      if (featureName.startsWith("parser_"))
+        featureName = featureName.substring("parser_".length());
+      String labelName = baseName(dependencyLabels);
+      if (labelName.lastIndexOf('_') >= 0)
+        labelName = labelName.substring(labelName.lastIndexOf('_') + 1);
+      this.name = featureName + "_" + labelName;
+    }
+
+    private static String baseName(File file) {
+      String name = file.getName();
+      return name.indexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+    }
+  }
+
+  /**
+   * The outcome of training a single variant.
+   */
+  static final class Result {
+    final Variant variant;
+    final long sessionMillis;
+    final long trainingMillis;
+    final String error;
+
+    Result(Variant variant, long sessionMillis, long trainingMillis, String error) {
+      this.variant = variant;
+      this.sessionMillis = sessionMillis;
+      this.trainingMillis = trainingMillis;
+      this.error = error;
+    }
+  }
+
+  /**
+   * @param config
+   *          the configuration containing the base session
+   * @param sessionId
+   *          the base session, from which each variant's session is derived
+   * @param corpus
+   *          the full contents of the training corpus
+   */
+  public AblationRunner(Config config, String sessionId, String corpus) {
+    this.config = config;
+    this.sessionId = sessionId;
+    this.corpus = corpus;
+    int threads = config.getInt("talismane.serbian.ablation.threads");
+    if (threads <= 0)
+      threads = Runtime.getRuntime().availableProcessors();
+    this.threads = threads;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException, TalismaneException {
+    Map<String, String> options = ConllLayout.parseArgs(args);
+    if (!options.containsKey("trainFile") || !options.containsKey("outDir"))
+      throw new IllegalArgumentException("Usage: AblationRunner --trainFile=train.conll --outDir=ablation/ [--features=f1.txt,f2.txt] [--depLabels=l1.txt,l2.txt]");
+
+    Charset charset = options.containsKey("encoding") ? Charset.forName(options.get("encoding")) : StandardCharsets.UTF_8;
+    String sessionId = options.containsKey("sessionId") ? options.get("sessionId") : "sr";
+    File languagePack = new File(options.containsKey("languagePack") ? options.get("languagePack") : "languagePack/");
+    List<File> featureFiles = getFiles(options.get("features"), languagePack, "parser_sr", ".txt");
+    List<File> labelFiles = getFiles(options.get("depLabels"), languagePack, "depLabels_sr_nproj_", ".txt");
+    if (featureFiles.size() == 0 || labelFiles.size() == 0)
+      throw new IllegalArgumentException("No feature or dependency label files found in " + languagePack.getPath());
+
+    List<Variant> variants = new ArrayList<>();
+    for (File featureFile : featureFiles) {
+      for (File labelFile : labelFiles)
+        variants.add(new Variant(featureFile, labelFile));
+    }
+
+    File outDir = new File(options.get("outDir"));
+    outDir.mkdirs();
+
+    long startTime = System.currentTimeMillis();
+    String corpus = new String(Files.readAllBytes(new File(options.get("trainFile")).toPath()), charset);
+    LOG.info("Read training corpus in " + (System.currentTimeMillis() - startTime) + " ms");
+
+    AblationRunner runner = new AblationRunner(ConfigFactory.load(), sessionId, corpus);
+    List<Result> results = runner.train(variants, outDir);
+
+    try (Writer writer = Files.newBufferedWriter(new File(outDir, "ablation-timings.csv").toPath(), StandardCharsets.UTF_8)) {
+      writeTimings(results, writer);
+    }
+
+    List<String> failed = new ArrayList<>();
+    for (Result result : results) {
+      if (result.error != null)
+        failed.add(result.variant.name);
+    }
+    if (failed.size() > 0)
+      throw new TalismaneException("Training failed for: " + String.join(", ", failed));
+  }
+
+  /**
+   * The comma-separated files given, or if none, the files in the directory
+   * with the given prefix and suffix, sorted by name.
+   */
+  static List<File> getFiles(String option, File directory, String prefix, String suffix) {
+    List<File> files = new ArrayList<>();
+    if (option != null) {
+      for (String path : option.split(","))
+        files.add(new File(path));
+    } else {
+      File[] found = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(suffix));
+      if (found != null) {
+        Arrays.sort(found);
+        files.addAll(Arrays.asList(found));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Train all variants, writing each model to the output directory, and return
+   * the results in the same order as the variants. A failure in one variant
+   * does not stop the others.
+   */
+  public List<Result> train(List<Variant> variants, File outDir) throws InterruptedException {
+    LOG.info("Training " + variants.size() + " variants on " + threads + " threads");
+    AtomicInteger threadCount = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, variants.size()), r -> {
+      Thread thread = new Thread(r, "ablation-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    try {
+      List<Future<Result>> futures = new ArrayList<>();
+      for (int i = 0; i < variants.size(); i++) {
+        Variant variant = variants.get(i);
+        String variantSessionId = sessionId + "_ablation" + i;
+        File modelFile = new File(outDir, variant.name + ".zip");
+        futures.add(executor.submit(() -> this.train(variant, variantSessionId, modelFile)));
+      }
+
+      List<Result> results = new ArrayList<>();
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          results.add(futures.get(i).get());
+        } catch (ExecutionException e) {
+          // train(Variant...) catches its own exceptions, so this is an Error
+          LOG.error("Training failed for " + variants.get(i).name, e.getCause());
+          results.add(new Result(variants.get(i), 0, 0, e.getCause().toString()));
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Result train(Variant variant, String variantSessionId, File modelFile) {
+    long startTime = System.currentTimeMillis();
+    long sessionMillis = 0;
+    try {
+      Map<String, Object> overrides = new HashMap<>();
+      overrides.put("parser.train.features", variant.features.getPath());
+      overrides.put("parser.dependency-labels", variant.dependencyLabels.getPath());
+      overrides.put("parser.train.model", modelFile.getPath());
+      Config sessionConfig = ConfigFactory.parseMap(overrides).withFallback(config.getConfig("talismane.core." + sessionId));
+      Config variantConfig = sessionConfig.atPath("talismane.core." + variantSessionId).withFallback(config);
+
+      TalismaneSession session = new TalismaneSession(variantConfig, variantSessionId);
+      sessionMillis = System.currentTimeMillis() - startTime;
+
+      LOG.info("Training " + variant.name);
+      ParserTrainer trainer = new ParserTrainer(new StringReader(corpus), session);
+      trainer.train();
+
+      long trainingMillis = System.currentTimeMillis() - startTime - sessionMillis;
+      LOG.info("Trained " + variant.name + " in " + (trainingMillis / 1000) + " s");
+      return new Result(variant, sessionMillis, trainingMillis, null);
+    } catch (Exception e) {
+      LOG.error("Training failed for " + variant.name, e);
+      return new Result(variant, sessionMillis, System.currentTimeMillis() - startTime - sessionMillis, e.toString());
+    }
+  }
+
+  /**
+   * Write one line per variant, with its files, the seconds spent setting up
+   * its session and training it, and any error.
+   */
+  static void writeTimings(List<Result> results, Writer writer) throws IOException {
+    writer.write("name,features,dependency-labels,session seconds,training seconds,error\n");
+    for (Result result : results) {
+      Variant variant = result.variant;
+      writer.write(String.format(Locale.US, "%s,%s,%s,%.1f,%.1f,%s\n", variant.name, variant.features.getPath(), variant.dependencyLabels.getPath(),
+          result.sessionMillis / 1000.0, result.trainingMillis / 1000.0, result.error == null ? "" : "\"" + result.error.replace("\"", "\"\"") + "\""));
+    }
+    writer.flush();
+  }
+}
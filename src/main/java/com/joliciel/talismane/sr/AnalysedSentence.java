@@ -0,0 +1,184 @@
+package com.joliciel.talismane.sr;
+
+import java.util.List;
+
+import com.joliciel.talismane.lexicon.LexicalEntry;
+import com.joliciel.talismane.parser.DependencyArc;
+import com.joliciel.talismane.parser.ParseConfiguration;
+import com.joliciel.talismane.posTagger.PosTaggedToken;
+
+/**
+ * The final analysis of a sentence, as returned by the {@link ParseServer}:
+ * for each token, its text, lemma, pos-tag, morphology, and its projective and
+ * non-projective governors and labels. Unlike a parse configuration, it holds
+ * no reference to the session, and can be cached and written back as CoNLL
+ * without loss.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class AnalysedSentence {
+  private static final int TOKEN = 0;
+  private static final int LEMMA = 1;
+  private static final int POSTAG = 2;
+  private static final int MORPHOLOGY = 3;
+  private static final int NON_PROJ_GOVERNOR = 4;
+  private static final int NON_PROJ_LABEL = 5;
+  private static final int GOVERNOR = 6;
+  private static final int LABEL = 7;
+  private static final int COLUMNS = 8;
+
+  private final String[][] tokens;
+
+  private AnalysedSentence(String[][] tokens) {
+    this.tokens = tokens;
+  }
+
+  static AnalysedSentence of(ParseConfiguration parseConfiguration) {
+    String[][] tokens = new String[parseConfiguration.getPosTagSequence().size() - 1][];
+    for (PosTaggedToken token : parseConfiguration.getPosTagSequence()) {
+      if (token.getIndex() == 0)
+        continue;
+      LexicalEntry entry = token.getLexicalEntries().isEmpty() ? null : token.getLexicalEntries().get(0);
+      DependencyArc arc = parseConfiguration.getGoverningDependency(token, true);
+      DependencyArc nonProjArc = parseConfiguration.getGoverningDependency(token, false);
+      String[] columns = new String[COLUMNS];
+      columns[TOKEN] = token.getToken().getOriginalText();
+      columns[LEMMA] = entry == null ? null : entry.getLemma();
+      columns[POSTAG] = token.getTag().getCode();
+      columns[MORPHOLOGY] = entry == null ? null : entry.getMorphology();
+      columns[NON_PROJ_GOVERNOR] = nonProjArc == null ? "0" : Integer.toString(nonProjArc.getHead().getIndex());
+      columns[NON_PROJ_LABEL] = nonProjArc == null ? null : nonProjArc.getLabel();
+      columns[GOVERNOR] = arc == null ? "0" : Integer.toString(arc.getHead().getIndex());
+      columns[LABEL] = arc == null ? null : arc.getLabel();
+      tokens[token.getIndex() - 1] = columns;
+    }
+    return new AnalysedSentence(tokens);
+  }
+
+  /**
+   * Read a sentence written by {@link #writeConll(StringBuilder)}, without its
+   * trailing blank line.
+   */
+  static AnalysedSentence readConll(List<String> lines) {
+    String[][] tokens = new String[lines.size()][];
+    for (int i = 0; i < lines.size(); i++) {
+      String[] columns = lines.get(i).split("\t", -1);
+      if (columns.length != 10)
+        throw new IllegalArgumentException("Expected 10 columns on line: " + lines.get(i));
+      tokens[i] = new String[] { columns[1], columns[2], columns[3], columns[5], columns[6], columns[7], columns[8], columns[9] };
+      for (int j = 0; j < COLUMNS; j++) {
+        if ("_".equals(tokens[i][j]) && j != TOKEN)
+          tokens[i][j] = null;
+      }
+    }
+    return new AnalysedSentence(tokens);
+  }
+
+  public int size() {
+    return tokens.length;
+  }
+
+  /**
+   * An estimate of the memory used, in bytes.
+   */
+  long getWeight() {
+    long weight = 32 + 16 * tokens.length;
+    for (String[] columns : tokens) {
+      for (String column : columns) {
+        if (column != null)
+          weight += 40 + 2 * column.length();
+      }
+    }
+    return weight;
+  }
+
+  /**
+   * Write the sentence in the default CoNLL layout (see {@link ConllLayout}),
+   * followed by a blank line.
+   */
+  void writeConll(StringBuilder sb) {
+    for (int i = 0; i < tokens.length; i++) {
+      String[] columns = tokens[i];
+      sb.append(i + 1);
+      sb.append('\t').append(columns[TOKEN]);
+      sb.append('\t').append(orBlank(columns[LEMMA]));
+      sb.append('\t').append(orBlank(columns[POSTAG]));
+      sb.append('\t').append(orBlank(columns[POSTAG]));
+      sb.append('\t').append(orBlank(columns[MORPHOLOGY]));
+      sb.append('\t').append(columns[NON_PROJ_GOVERNOR]);
+      sb.append('\t').append(orBlank(columns[NON_PROJ_LABEL]));
+      sb.append('\t').append(columns[GOVERNOR]);
+      sb.append('\t').append(orBlank(columns[LABEL]));
+      sb.append('\n');
+    }
+    sb.append('\n');
+  }
+
+  private static String orBlank(String value) {
+    return value == null ? "_" : value;
+  }
+
+  /**
+   * Write the sentence as a JSON list of tokens.
+   */
+  void writeJson(StringBuilder sb) {
+    sb.append('[');
+    for (int i = 0; i < tokens.length; i++) {
+      String[] columns = tokens[i];
+      if (i > 0)
+        sb.append(',');
+      sb.append("{\"id\":").append(i + 1);
+      sb.append(",\"token\":");
+      appendJson(sb, columns[TOKEN]);
+      sb.append(",\"lemma\":");
+      appendJson(sb, columns[LEMMA]);
+      sb.append(",\"posTag\":");
+      appendJson(sb, columns[POSTAG]);
+      sb.append(",\"morphology\":");
+      appendJson(sb, columns[MORPHOLOGY]);
+      sb.append(",\"governor\":").append(columns[GOVERNOR]);
+      sb.append(",\"label\":");
+      appendJson(sb, columns[LABEL]);
+      sb.append(",\"nonProjGovernor\":").append(columns[NON_PROJ_GOVERNOR]);
+      sb.append(",\"nonProjLabel\":");
+      appendJson(sb, columns[NON_PROJ_LABEL]);
+      sb.append('}');
+    }
+    sb.append(']');
+  }
+
+  private static void appendJson(StringBuilder sb, String value) {
+    if (value == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < 0x20)
+          sb.append(String.format("\\u%04x", (int) c));
+        else
+          sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+}
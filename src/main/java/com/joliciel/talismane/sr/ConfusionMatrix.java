@@ -0,0 +1,254 @@
+package com.joliciel.talismane.sr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.joliciel.talismane.stats.FScoreCalculator;
+
+/**
+ * A confusion matrix of expected vs. guessed labels, stored as primitive int
+ * counts over interned label ids. Matrices for different shards of a corpus
+ * can be merged, and saved to or loaded from a tab-separated file with one
+ * <code>expected, guessed, count</code> line per non-empty cell, so that
+ * shards evaluated separately (in parallel, or on different machines) can be
+ * combined into a single set of f-scores. The matrix is only used for
+ * merging and saving counts: the f-scores themselves are written by
+ * Talismane's {@link FScoreCalculator}, filled from the matrix at the end.<br/>
+ * <br/>
+ * A single matrix is not thread-safe: each thread should update its own
+ * matrix, to be merged at the end.<br/>
+ * <br/>
+ * Can be run from the command line to merge saved matrices:
+ *
+ * <pre>
+ * java -cp talismane_sr-0.0.1-SNAPSHOT.jar com.joliciel.talismane.sr.ConfusionMatrix --outFile=merged.nproj-fscores.csv [--outMatrix=merged.nproj-confusion.tsv] shard1.nproj-confusion.tsv shard2.nproj-confusion.tsv ...
+ * </pre>
+ *
+ * @author Assaf Urieli
+ *
+ */
+public class ConfusionMatrix {
+  static final SymbolTable LABELS = new SymbolTable();
+
+  private int[][] counts = new int[0][];
+
+  public void increment(String expected, String guessed) {
+    this.increment(LABELS.intern(expected), LABELS.intern(guessed), 1);
+  }
+
+  public void increment(int expected, int guessed, int count) {
+    if (expected >= counts.length) {
+      int[][] grown = new int[Math.max(expected + 1, counts.length * 2)][];
+      System.arraycopy(counts, 0, grown, 0, counts.length);
+      counts = grown;
+    }
+    int[] row = counts[expected];
+    if (row == null || guessed >= row.length) {
+      int[] grown = new int[Math.max(guessed + 1, row == null ? 16 : row.length * 2)];
+      if (row != null)
+        System.arraycopy(row, 0, grown, 0, row.length);
+      row = grown;
+      counts[expected] = row;
+    }
+    row[guessed] += count;
+  }
+
+  public int getCount(String expected, String guessed) {
+    int expectedId = LABELS.getId(expected);
+    int guessedId = LABELS.getId(guessed);
+    if (expectedId < 0 || guessedId < 0 || expectedId >= counts.length || counts[expectedId] == null || guessedId >= counts[expectedId].length)
+      return 0;
+    return counts[expectedId][guessedId];
+  }
+
+  /**
+   * All labels, expected or guessed, with at least one count.
+   */
+  public Set<String> getLabels() {
+    Set<String> labels = new TreeSet<>();
+    for (int expected = 0; expected < counts.length; expected++) {
+      int[] row = counts[expected];
+      if (row == null)
+        continue;
+      for (int guessed = 0; guessed < row.length; guessed++) {
+        if (row[guessed] != 0) {
+          labels.add(LABELS.getSymbol(expected));
+          labels.add(LABELS.getSymbol(guessed));
+        }
+      }
+    }
+    return labels;
+  }
+
+  private int getRowTotal(int expected) {
+    int total = 0;
+    if (expected >= 0 && expected < counts.length && counts[expected] != null) {
+      for (int count : counts[expected])
+        total += count;
+    }
+    return total;
+  }
+
+  private int getColumnTotal(int guessed) {
+    int total = 0;
+    if (guessed < 0)
+      return total;
+    for (int[] row : counts) {
+      if (row != null && guessed < row.length)
+        total += row[guessed];
+    }
+    return total;
+  }
+
+  public double getPrecision(String label) {
+    int guessedTotal = this.getColumnTotal(LABELS.getId(label));
+    return guessedTotal == 0 ? 0.0 : (double) this.getCount(label, label) / (double) guessedTotal;
+  }
+
+  public double getRecall(String label) {
+    int expectedTotal = this.getRowTotal(LABELS.getId(label));
+    return expectedTotal == 0 ? 0.0 : (double) this.getCount(label, label) / (double) expectedTotal;
+  }
+
+  public double getFScore(String label) {
+    double precision = this.getPrecision(label);
+    double recall = this.getRecall(label);
+    return precision + recall == 0 ? 0.0 : (2 * precision * recall) / (precision + recall);
+  }
+
+  /**
+   * The total f-score across all labels, which, since every expected label
+   * has a guessed counterpart, is the proportion of correct guesses.
+   */
+  public double getTotalFScore() {
+    int correct = 0;
+    int total = 0;
+    for (int expected = 0; expected < counts.length; expected++) {
+      int[] row = counts[expected];
+      if (row == null)
+        continue;
+      for (int guessed = 0; guessed < row.length; guessed++) {
+        total += row[guessed];
+        if (guessed == expected)
+          correct += row[guessed];
+      }
+    }
+    return total == 0 ? 0.0 : (double) correct / (double) total;
+  }
+
+  /**
+   * Add all counts from another matrix to this one.
+   */
+  public void merge(ConfusionMatrix other) {
+    for (int expected = 0; expected < other.counts.length; expected++) {
+      int[] row = other.counts[expected];
+      if (row == null)
+        continue;
+      for (int guessed = 0; guessed < row.length; guessed++) {
+        if (row[guessed] != 0)
+          this.increment(expected, guessed, row[guessed]);
+      }
+    }
+  }
+
+  /**
+   * An f-score calculator containing all of this matrix's counts, filled in a
+   * single pass over the non-empty cells, so that the f-scores are written in
+   * Talismane's own format. The calculator only counts one outcome per
+   * increment, so each cell is added as many times as its count.
+   */
+  public FScoreCalculator<String> getFScoreCalculator() {
+    FScoreCalculator<String> fscoreCalculator = new FScoreCalculator<String>();
+    for (int expected = 0; expected < counts.length; expected++) {
+      int[] row = counts[expected];
+      if (row == null)
+        continue;
+      String expectedLabel = LABELS.getSymbol(expected);
+      for (int guessed = 0; guessed < row.length; guessed++) {
+        if (row[guessed] == 0)
+          continue;
+        String guessedLabel = LABELS.getSymbol(guessed);
+        for (int i = 0; i < row[guessed]; i++)
+          fscoreCalculator.increment(expectedLabel, guessedLabel);
+      }
+    }
+    return fscoreCalculator;
+  }
+
+  public void save(File file) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      this.save(writer);
+    }
+  }
+
+  public void save(Writer writer) throws IOException {
+    for (int expected = 0; expected < counts.length; expected++) {
+      int[] row = counts[expected];
+      if (row == null)
+        continue;
+      for (int guessed = 0; guessed < row.length; guessed++) {
+        if (row[guessed] != 0)
+          writer.write(LABELS.getSymbol(expected) + "\t" + LABELS.getSymbol(guessed) + "\t" + row[guessed] + "\n");
+      }
+    }
+    writer.flush();
+  }
+
+  public static ConfusionMatrix load(File file) throws IOException {
+    ConfusionMatrix matrix = new ConfusionMatrix();
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.length() == 0)
+          continue;
+        String[] parts = line.split("\t");
+        if (parts.length != 3)
+          throw new IOException("Badly formatted line in " + file.getPath() + ": " + line);
+        matrix.increment(LABELS.intern(parts[0]), LABELS.intern(parts[1]), Integer.parseInt(parts[2]));
+      }
+    }
+    return matrix;
+  }
+
+  public static void main(String[] args) throws IOException {
+    File outFile = null;
+    File outMatrix = null;
+    Charset charset = StandardCharsets.UTF_8;
+    List<File> inFiles = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--outFile="))
+        outFile = new File(arg.substring("--outFile=".length()));
+      else if (arg.startsWith("--outMatrix="))
+        outMatrix = new File(arg.substring("--outMatrix=".length()));
+      else if (arg.startsWith("--encoding="))
+        charset = Charset.forName(arg.substring("--encoding=".length()));
+      else if (arg.startsWith("--"))
+        throw new IllegalArgumentException("Unknown argument: " + arg);
+      else
+        inFiles.add(new File(arg));
+    }
+    if (outFile == null || inFiles.size() == 0)
+      throw new IllegalArgumentException("Usage: ConfusionMatrix --outFile=fscores.csv [--outMatrix=merged.tsv] matrix1.tsv matrix2.tsv ...");
+
+    ConfusionMatrix merged = new ConfusionMatrix();
+    for (File inFile : inFiles)
+      merged.merge(load(inFile));
+
+    if (outMatrix != null)
+      merged.save(outMatrix);
+    try (Writer writer = new BufferedWriter(Files.newBufferedWriter(outFile.toPath(), charset))) {
+      merged.getFScoreCalculator().writeScoresToCSV(writer);
+      writer.flush();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package com.joliciel.talismane.sr;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.joliciel.talismane.parser.DependencyArc;
+import com.joliciel.talismane.parser.ParseConfiguration;
+import com.joliciel.talismane.posTagger.PosTaggedToken;
+import com.typesafe.config.Config;
+
+/**
+ * A Talismane corpus rule, as configured in <code>corpus-rules</code>, applied
+ * directly to the columns of a {@link ConllSentence}: if every criterion
+ * (a regex matching the whole column value) matches a token, each action sets
+ * the corresponding column to a new value. Only the placeholders known to
+ * {@link ConllLayout#getColumn(String)} are handled.<br/>
+ * <br/>
+ * The same rules can be applied to a {@link ParseConfiguration} held in
+ * memory, in which case only the NON_PROJ_LABEL action is supported, and the
+ * MORPHOLOGY criterion is not.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class ConllCorpusRule {
+  private final ConllLayout layout;
+  private final Map<Integer, Pattern> criteria = new LinkedHashMap<>();
+  private final Map<Integer, String> actions = new LinkedHashMap<>();
+
+  ConllCorpusRule(Config config, ConllLayout layout) {
+    this.layout = layout;
+    Config criteriaConfig = config.getConfig("criteria");
+    for (String key : criteriaConfig.root().keySet()) {
+      criteria.put(column(key, layout), Pattern.compile(criteriaConfig.getString(key)));
+    }
+    Config actionsConfig = config.getConfig("actions");
+    for (String key : actionsConfig.root().keySet()) {
+      actions.put(column(key, layout), actionsConfig.getString(key));
+    }
+  }
+
+  private static int column(String name, ConllLayout layout) {
+    int column = layout.getColumn(name);
+    if (column < 0)
+      throw new IllegalArgumentException("Unsupported corpus rule column: " + name);
+    return column;
+  }
+
+  /**
+   * Read the rules at the given config path, if any.
+   */
+  static List<ConllCorpusRule> getRules(Config config, String path, ConllLayout layout) {
+    List<ConllCorpusRule> rules = new ArrayList<>();
+    if (config.hasPath(path)) {
+      for (Config ruleConfig : config.getConfigList(path))
+        rules.add(new ConllCorpusRule(ruleConfig, layout));
+    }
+    return rules;
+  }
+
+  static void apply(List<ConllCorpusRule> rules, ConllSentence sentence) {
+    if (rules.size() == 0)
+      return;
+    for (int i = 1; i < sentence.size(); i++) {
+      if (!sentence.hasToken(i))
+        continue;
+      for (ConllCorpusRule rule : rules)
+        rule.apply(sentence, i);
+    }
+  }
+
+  private void apply(ConllSentence sentence, int token) {
+    for (Map.Entry<Integer, Pattern> criterion : criteria.entrySet()) {
+      if (!criterion.getValue().matcher(sentence.get(token, criterion.getKey())).matches())
+        return;
+    }
+    for (Map.Entry<Integer, String> action : actions.entrySet())
+      sentence.set(token, action.getKey(), action.getValue());
+  }
+
+  static void apply(List<ConllCorpusRule> rules, ParseConfiguration parseConfiguration) {
+    if (rules.size() == 0)
+      return;
+    for (PosTaggedToken token : parseConfiguration.getPosTagSequence()) {
+      if (token.getIndex() == 0)
+        continue;
+      for (ConllCorpusRule rule : rules)
+        rule.apply(parseConfiguration, token);
+    }
+  }
+
+  private void apply(ParseConfiguration parseConfiguration, PosTaggedToken token) {
+    DependencyArc arc = parseConfiguration.getGoverningDependency(token, true);
+    DependencyArc nonProjArc = parseConfiguration.getGoverningDependency(token, false);
+    for (Map.Entry<Integer, Pattern> criterion : criteria.entrySet()) {
+      if (!criterion.getValue().matcher(this.getValue(token, arc, nonProjArc, criterion.getKey())).matches())
+        return;
+    }
+    for (Map.Entry<Integer, String> action : actions.entrySet()) {
+      if (action.getKey() != layout.nonProjLabelColumn)
+        throw new IllegalArgumentException("Only NON_PROJ_LABEL actions can be applied to a parse configuration");
+      if (nonProjArc == null)
+        continue;
+      parseConfiguration.removeNonProjectiveDependency(nonProjArc);
+      nonProjArc = parseConfiguration.addManualNonProjectiveDependency(nonProjArc.getHead(), token, action.getValue());
+    }
+  }
+
+  private String getValue(PosTaggedToken token, DependencyArc arc, DependencyArc nonProjArc, int column) {
+    if (column == layout.tokenColumn)
+      return token.getToken().getOriginalText();
+    if (column == layout.posTagColumn)
+      return token.getTag().getCode();
+    if (column == layout.governorColumn)
+      return arc == null ? "_" : String.valueOf(arc.getHead().getIndex());
+    if (column == layout.labelColumn)
+      return arc == null || arc.getLabel() == null ? "_" : arc.getLabel();
+    if (column == layout.nonProjGovernorColumn)
+      return nonProjArc == null ? "_" : String.valueOf(nonProjArc.getHead().getIndex());
+    if (column == layout.nonProjLabelColumn)
+      return nonProjArc == null || nonProjArc.getLabel() == null ? "_" : nonProjArc.getLabel();
+    throw new IllegalArgumentException("Unsupported corpus rule column for a parse configuration: " + (column + 1));
+  }
+}
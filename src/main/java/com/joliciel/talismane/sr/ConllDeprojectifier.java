@@ -0,0 +1,155 @@
+package com.joliciel.talismane.sr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+/**
+ * A lightweight command-line de-projectifier, which streams a CoNLL file
+ * through the {@link Deprojectifier} logic without starting a Talismane
+ * session: no models or lexicons are loaded, morphology being read directly
+ * from the CoNLL morphology column.<br/>
+ * <br/>
+ * Each token's non-projective governor and label are set to its projective
+ * ones, except for tokens governed by a label handled by one of the
+ * {@link DeprojectionRule}s in
+ * <code>talismane.serbian.deprojectifier.rules</code>, whose non-projective
+ * head is recovered. All other columns and lines are
+ * copied as is.<br/>
+ * <br/>
+ * Since no lexicon is loaded, agreement is only checked against the single
+ * analysis in each token's morphology column, whereas the {@link Deprojectifier}
+ * in a Talismane session checks it against all of the token's lexical
+ * entries for its form and pos-tag, accepting a candidate head which agrees
+ * with any of them. For forms with several analyses in the lexicon, such as
+ * adjectives whose form is shared by several cases, the two can therefore
+ * choose different non-projective heads for the same input. Use the
+ * session-based de-projectifier when the output must match it exactly.<br/>
+ * <br/>
+ * Usage:
+ *
+ * <pre>
+ * java -cp talismane_sr-0.0.1-SNAPSHOT.jar com.joliciel.talismane.sr.ConllDeprojectifier [--inFile=in.conll] [--outFile=out.conll]
+ * </pre>
+ *
+ * If inFile or outFile are missing, stdin or stdout are used respectively. When
+ * writing to stdout, logging should be configured to write to stderr.
+ * Other options are: encoding (default UTF-8), nounAdjDep, and the column
+ * numbers described in {@link ConllLayout}.
+ *
+ * @author Assaf Urieli
+ *
+ */
+public class ConllDeprojectifier {
+  private static final Logger LOG = LoggerFactory.getLogger(ConllDeprojectifier.class);
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final Deprojectifier deprojectifier;
+  private final ConllLayout layout;
+  private final TagDictionary tagDictionary;
+
+  public ConllDeprojectifier(Config config, Map<String, String> options) throws IOException {
+    this.deprojectifier = new Deprojectifier(config);
+    this.layout = new ConllLayout(options);
+    this.tagDictionary = TagDictionary.open(config);
+  }
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> options = ConllLayout.parseArgs(args);
+
+    Config config = ConfigFactory.load();
+    if (options.containsKey("nounAdjDep"))
+      config = config.withValue("talismane.serbian.deprojectifier.nounAdjDep", ConfigValueFactory.fromAnyRef(options.get("nounAdjDep")));
+
+    Charset charset = options.containsKey("encoding") ? Charset.forName(options.get("encoding")) : StandardCharsets.UTF_8;
+    Reader reader = options.containsKey("inFile") ? Files.newBufferedReader(Paths.get(options.get("inFile")), charset)
+        : new InputStreamReader(System.in, charset);
+    Writer writer = options.containsKey("outFile") ? Files.newBufferedWriter(Paths.get(options.get("outFile")), charset)
+        : new OutputStreamWriter(System.out, charset);
+
+    ConllDeprojectifier conllDeprojectifier = new ConllDeprojectifier(config, options);
+    long startTime = System.currentTimeMillis();
+    BufferedReader in = new BufferedReader(reader, BUFFER_SIZE);
+    Writer out = new BufferedWriter(writer, BUFFER_SIZE);
+    try {
+      int sentenceCount = conllDeprojectifier.process(in, out);
+      LOG.info("De-projectified " + sentenceCount + " sentences in " + (System.currentTimeMillis() - startTime) + " ms");
+      conllDeprojectifier.deprojectifier.onCompleteParse();
+    } finally {
+      conllDeprojectifier.deprojectifier.close();
+      in.close();
+      // don't close stdout, which may still be needed for logging
+      if (options.containsKey("outFile"))
+        out.close();
+      else
+        out.flush();
+    }
+  }
+
+  /**
+   * Read CoNLL sentences from the reader, and write them de-projectified to
+   * the writer.
+   *
+   * @return the number of sentences processed
+   */
+  public int process(BufferedReader reader, Writer writer) throws IOException {
+    int sentenceCount = 0;
+    ConllSentence sentence;
+    while ((sentence = ConllSentence.read(reader, layout)) != null) {
+      this.deprojectify(sentence, sentenceCount);
+      sentence.write(writer);
+      sentenceCount++;
+    }
+    writer.flush();
+    return sentenceCount;
+  }
+
+  /**
+   * De-projectify a single sentence in place. The sentence number is only used
+   * in the trace.
+   */
+  void deprojectify(ConllSentence sentence, long sentenceId) {
+    ProcessorMetrics metrics = deprojectifier.getMetrics();
+    long startTime = metrics == null ? 0 : System.nanoTime();
+    SentenceGraph graph = sentence.toGraph(true, tagDictionary);
+    int[][] candidates = null;
+    for (int i = 1; i < sentence.size(); i++) {
+      if (!sentence.hasToken(i))
+        continue;
+      sentence.set(i, layout.nonProjGovernorColumn, sentence.get(i, layout.governorColumn));
+      sentence.set(i, layout.nonProjLabelColumn, sentence.get(i, layout.labelColumn));
+      int head = graph.getHead(i);
+      DeprojectionRule rule = deprojectifier.getRule(graph.getLabel(i));
+      if (head >= 0 && rule != null) {
+        if (candidates == null)
+          candidates = new int[deprojectifier.getRules().size()][];
+        if (candidates[rule.index] == null)
+          candidates[rule.index] = rule.getCandidates(graph);
+        if (metrics != null)
+          metrics.arc(candidates[rule.index].length);
+        int nonProjHead = rule.findNonProjectiveHead(graph, candidates[rule.index], sentenceId, i, head, deprojectifier.getTrace());
+        sentence.set(i, layout.nonProjGovernorColumn, Integer.toString(nonProjHead));
+      }
+    }
+    if (metrics != null) {
+      metrics.agreementChecks(graph.getAgreementChecks());
+      metrics.sentence(sentenceId, sentence.size() - 1, System.nanoTime() - startTime);
+    }
+  }
+}
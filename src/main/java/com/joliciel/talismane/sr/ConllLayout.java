@@ -0,0 +1,78 @@
+package com.joliciel.talismane.sr;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The 0-based positions of the CoNLL columns read by the Serbian command-line
+ * tools. Defaults correspond to Talismane's default CoNLL layout, and can be
+ * overridden by 1-based options: tokenColumn (default 2), posTagColumn (4),
+ * morphologyColumn (6), nonProjGovernorColumn (7), nonProjLabelColumn (8),
+ * governorColumn (9) and labelColumn (10).
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class ConllLayout {
+  final int tokenColumn;
+  final int posTagColumn;
+  final int morphologyColumn;
+  final int nonProjGovernorColumn;
+  final int nonProjLabelColumn;
+  final int governorColumn;
+  final int labelColumn;
+  final int minColumns;
+
+  private final Map<String, Integer> columnsByName = new HashMap<>();
+
+  ConllLayout(Map<String, String> options) {
+    this.tokenColumn = column(options, "tokenColumn", 2);
+    this.posTagColumn = column(options, "posTagColumn", 4);
+    this.morphologyColumn = column(options, "morphologyColumn", 6);
+    this.nonProjGovernorColumn = column(options, "nonProjGovernorColumn", 7);
+    this.nonProjLabelColumn = column(options, "nonProjLabelColumn", 8);
+    this.governorColumn = column(options, "governorColumn", 9);
+    this.labelColumn = column(options, "labelColumn", 10);
+
+    columnsByName.put("TOKEN", tokenColumn);
+    columnsByName.put("POSTAG", posTagColumn);
+    columnsByName.put("MORPHOLOGY", morphologyColumn);
+    columnsByName.put("NON_PROJ_GOVERNOR", nonProjGovernorColumn);
+    columnsByName.put("NON_PROJ_LABEL", nonProjLabelColumn);
+    columnsByName.put("GOVERNOR", governorColumn);
+    columnsByName.put("LABEL", labelColumn);
+
+    int maxColumn = 0;
+    for (int column : columnsByName.values())
+      maxColumn = Math.max(maxColumn, column);
+    this.minColumns = maxColumn + 1;
+  }
+
+  private static int column(Map<String, String> options, String name, int defaultValue) {
+    String value = options.get(name);
+    return (value == null ? defaultValue : Integer.parseInt(value)) - 1;
+  }
+
+  /**
+   * The column for a Talismane corpus placeholder name such as LABEL or
+   * NON_PROJ_GOVERNOR, or -1 if not handled.
+   */
+  int getColumn(String name) {
+    Integer column = columnsByName.get(name);
+    return column == null ? -1 : column;
+  }
+
+  /**
+   * Parse <code>--name=value</code> command-line arguments.
+   */
+  static Map<String, String> parseArgs(String[] args) {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      if (!arg.startsWith("--") || arg.indexOf('=') < 0)
+        throw new IllegalArgumentException("Unknown argument: " + arg + ", expected --name=value");
+      int equals = arg.indexOf('=');
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    return options;
+  }
+}
@@ -0,0 +1,171 @@
+package com.joliciel.talismane.sr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A single sentence read from a CoNLL file, with its token lines split into
+ * columns and indexed by CoNLL id. Comments and multi-word ranges are kept as
+ * is, so that the sentence can be written back unchanged apart from any
+ * columns modified.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class ConllSentence {
+  private final ConllLayout layout;
+  private final List<String> lines;
+  private final String[][] tokens;
+  private final int[] lineTokens;
+  private final int size;
+
+  ConllSentence(List<String> lines, ConllLayout layout) {
+    this.layout = layout;
+    this.lines = lines;
+    this.tokens = new String[lines.size() + 1][];
+    this.lineTokens = new int[lines.size()];
+    int size = 1;
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i);
+      lineTokens[i] = -1;
+      if (line.startsWith("#"))
+        continue;
+      String[] columns = line.split("\t", -1);
+      int id;
+      try {
+        id = Integer.parseInt(columns[0]);
+      } catch (NumberFormatException e) {
+        continue;
+      }
+      if (id <= 0 || id >= tokens.length)
+        throw new IllegalArgumentException("Token id out of range on line: " + line);
+      if (columns.length < layout.minColumns) {
+        String[] padded = Arrays.copyOf(columns, layout.minColumns);
+        Arrays.fill(padded, columns.length, layout.minColumns, "_");
+        columns = padded;
+      }
+      tokens[id] = columns;
+      lineTokens[i] = id;
+      size = Math.max(size, id + 1);
+    }
+    this.size = size;
+  }
+
+  /**
+   * Read the next sentence, or return null if there are none left. Blank lines
+   * separate sentences.
+   */
+  static ConllSentence read(BufferedReader reader, ConllLayout layout) throws IOException {
+    List<String> lines = new ArrayList<>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.trim().length() == 0) {
+        if (lines.size() > 0)
+          break;
+      } else {
+        lines.add(line);
+      }
+    }
+    if (lines.size() == 0)
+      return null;
+    return new ConllSentence(lines, layout);
+  }
+
+  /**
+   * The largest token id + 1, the root being at index 0.
+   */
+  public int size() {
+    return size;
+  }
+
+  public boolean hasToken(int id) {
+    return tokens[id] != null;
+  }
+
+  public String get(int id, int column) {
+    return tokens[id][column];
+  }
+
+  public void set(int id, int column, String value) {
+    tokens[id][column] = value;
+  }
+
+  /**
+   * The token's non-projective governor, falling back on the projective one
+   * if none is given, or -1 if neither is.
+   */
+  public int getNonProjGovernor(int id) {
+    String head = tokens[id][layout.nonProjGovernorColumn];
+    if ("_".equals(head))
+      head = tokens[id][layout.governorColumn];
+    return "_".equals(head) ? -1 : Integer.parseInt(head);
+  }
+
+  public String getNonProjLabel(int id) {
+    if ("_".equals(tokens[id][layout.nonProjGovernorColumn]))
+      return tokens[id][layout.labelColumn];
+    return tokens[id][layout.nonProjLabelColumn];
+  }
+
+  public int getGovernor(int id) {
+    String head = tokens[id][layout.governorColumn];
+    return "_".equals(head) ? -1 : Integer.parseInt(head);
+  }
+
+  /**
+   * Build a graph of the projective tree, packing morphology for nominal and
+   * adjectival tokens if withMorphology is true, looking their morphology up
+   * in the tag dictionary if not null.
+   */
+  public SentenceGraph toGraph(boolean withMorphology, TagDictionary tagDictionary) {
+    int[] heads = new int[size];
+    int[] tags = new int[size];
+    int[] labels = new int[size];
+    long[][] morphology = new long[size][];
+    Arrays.fill(heads, -1);
+    Arrays.fill(labels, -1);
+    tags[0] = SentenceGraph.TAGS.intern("");
+    for (int i = 1; i < size; i++) {
+      String[] columns = tokens[i];
+      if (columns == null)
+        continue;
+      int tag = SentenceGraph.TAGS.intern(columns[layout.posTagColumn]);
+      tags[i] = tag;
+      if (withMorphology && (tag == SentenceGraph.TAG_A || tag == SentenceGraph.TAG_NUM || tag == SentenceGraph.TAG_N || tag == SentenceGraph.TAG_P)) {
+        long packed = Morphology.parse(columns[layout.morphologyColumn], tagDictionary);
+        if (packed != 0)
+          morphology[i] = new long[] { packed };
+      }
+      int head = this.getGovernor(i);
+      if (head >= 0) {
+        heads[i] = head;
+        labels[i] = SentenceGraph.LABELS.intern(columns[layout.labelColumn]);
+      }
+    }
+    return new SentenceGraph(heads, tags, labels, morphology);
+  }
+
+  /**
+   * Write the sentence followed by a blank line.
+   */
+  public void write(Writer writer) throws IOException {
+    for (int i = 0; i < lines.size(); i++) {
+      if (lineTokens[i] < 0) {
+        writer.write(lines.get(i));
+      } else {
+        String[] columns = tokens[lineTokens[i]];
+        for (int j = 0; j < columns.length; j++) {
+          if (j > 0)
+            writer.write('\t');
+          writer.write(columns[j]);
+        }
+      }
+      writer.write('\n');
+    }
+    writer.write('\n');
+  }
+}
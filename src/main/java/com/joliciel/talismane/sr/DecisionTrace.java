@@ -0,0 +1,334 @@
+package com.joliciel.talismane.sr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.typesafe.config.Config;
+
+/**
+ * A compact binary trace of the decisions taken by the {@link Deprojectifier}
+ * and the {@link NonProjectiveEvaluator}, written asynchronously by a
+ * background thread, replacing per-arc logging. Tracing is enabled in
+ * <code>talismane.serbian.trace</code>: when it is disabled, no trace is
+ * opened, and the processors do no tracing work at all.<br/>
+ * <br/>
+ * Callers add records to a bounded queue, and only wait if the writer falls
+ * more than <code>queue-size</code> records behind, so that no record is lost
+ * while the writer is healthy. If the writer fails, the failure is recorded,
+ * later records are dropped rather than waited for, and {@link #close()}
+ * reports the failure. Closing waits at most <code>close-timeout</code> for
+ * the queued records to be written.
+ * Strings (labels and reasons) are interned, and each one is written once, as
+ * a symbol record preceding its first use. The file starts with a magic number
+ * and version, followed by records starting with a type byte:
+ * <ul>
+ * <li>symbol: id (int), symbol (modified UTF-8)</li>
+ * <li>de-projectification: sentence (long), adjective, projective head, verb,
+ * the nearest candidate found between the verb and the adjective, before the
+ * adjective and after the verb, chosen head, reason symbol (ints, -1 if
+ * none)</li>
+ * <li>evaluation: sentence (long), token, real head, guessed head, real label
+ * symbol, guessed label symbol (ints)</li>
+ * </ul>
+ * Usage, to print a trace as tab-separated text:
+ *
+ * <pre>
+ * java -cp talismane_sr-0.0.1-SNAPSHOT.jar com.joliciel.talismane.sr.DecisionTrace --inFile=trace/deprojectifier.trace [--outFile=deprojectifier.tsv]
+ * </pre>
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class DecisionTrace implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(DecisionTrace.class);
+
+  private static final int MAGIC = 0x53524454; // "SRDT"
+  private static final int VERSION = 1;
+
+  private static final byte SYMBOL = 0;
+  private static final byte DEPROJECTIFICATION = 1;
+  private static final byte EVALUATION = 2;
+
+  private static final Record END = new Record(SYMBOL, 0, null);
+
+  /**
+   * How long a caller waits for queue space before checking the writer again.
+   */
+  private static final long OFFER_MILLIS = 100;
+
+  /**
+   * How long close waits for the writer to stop once interrupted.
+   */
+  private static final long INTERRUPT_MILLIS = 1000;
+
+  private final File file;
+  private final SymbolTable symbols = new SymbolTable();
+  private final BlockingQueue<Record> queue;
+  private final DataOutputStream out;
+  private final Thread writerThread;
+  private final long closeTimeoutMillis;
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile IOException failure;
+  private boolean closed = false;
+
+  private static final class Record {
+    final byte type;
+    final long sentence;
+    final int[] values;
+
+    Record(byte type, long sentence, int[] values) {
+      this.type = type;
+      this.sentence = sentence;
+      this.values = values;
+    }
+  }
+
+  private DecisionTrace(File file, int queueSize, long closeTimeoutMillis) throws IOException {
+    this.file = file;
+    this.closeTimeoutMillis = closeTimeoutMillis;
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+    this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath()), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+    } catch (IOException e) {
+      out.close();
+      throw e;
+    }
+    this.writerThread = new Thread(this::write, "trace-" + file.getName());
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Open a new trace file named after the processor in the configured trace
+   * directory, or return null if tracing is disabled. An existing file is not
+   * overwritten: a numeric suffix is added instead.
+   */
+  static DecisionTrace open(Config config, String name) throws IOException {
+    Config traceConfig = config.getConfig("talismane.serbian.trace");
+    if (!traceConfig.getBoolean("enabled"))
+      return null;
+    File dir = new File(traceConfig.getString("dir"));
+    dir.mkdirs();
+    File file = new File(dir, name + ".trace");
+    for (int i = 1; file.exists(); i++)
+      file = new File(dir, name + "-" + i + ".trace");
+    LOG.info("Writing decision trace to " + file.getPath());
+    return new DecisionTrace(file, Math.max(1, traceConfig.getInt("queue-size")), traceConfig.getDuration("close-timeout", TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Record the non-projective head chosen for an adjective.
+   */
+  public void deprojectified(long sentence, int adj, int projHead, int verb, int between, int before, int after, int head, String reason) {
+    this.add(new Record(DEPROJECTIFICATION, sentence, new int[] { adj, projHead, verb, between, before, after, head, symbols.intern(reason) }));
+  }
+
+  /**
+   * Record the evaluation of a non-projective token.
+   */
+  public void evaluated(long sentence, int token, int realHead, int guessedHead, String realLabel, String guessedLabel) {
+    this.add(new Record(EVALUATION, sentence, new int[] { token, realHead, guessedHead, symbols.intern(realLabel), symbols.intern(guessedLabel) }));
+  }
+
+  /**
+   * Queue a record, waiting for space while the writer is still running, and
+   * dropping the record if the writer has failed or stopped.
+   */
+  private void add(Record record) {
+    if (!this.offer(record) && dropped.getAndIncrement() == 0)
+      LOG.warn("Trace writer for " + file.getPath() + " has stopped, dropping further records");
+  }
+
+  private boolean offer(Record record) {
+    try {
+      while (failure == null && writerThread.isAlive()) {
+        if (queue.offer(record, OFFER_MILLIS, TimeUnit.MILLISECONDS))
+          return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return false;
+  }
+
+  /**
+   * Write queued records until the end marker, and close the file. Only this
+   * thread ever touches the file once it has started.
+   */
+  private void write() {
+    int symbolsWritten = 0;
+    try {
+      while (true) {
+        Record record = queue.take();
+        if (record == END)
+          break;
+        // symbols are interned before their record is queued
+        int symbolCount = symbols.size();
+        for (; symbolsWritten < symbolCount; symbolsWritten++) {
+          out.writeByte(SYMBOL);
+          out.writeInt(symbolsWritten);
+          out.writeUTF(symbols.getSymbol(symbolsWritten));
+        }
+        out.writeByte(record.type);
+        out.writeLong(record.sentence);
+        for (int value : record.values)
+          out.writeInt(value);
+      }
+    } catch (InterruptedException e) {
+      failure = new InterruptedIOException("Interrupted while writing trace " + file.getPath());
+    } catch (IOException e) {
+      LOG.error("Failed to write trace " + file.getPath(), e);
+      failure = e;
+    } catch (RuntimeException | Error e) {
+      LOG.error("Failed to write trace " + file.getPath(), e);
+      failure = new IOException("Failed to write trace " + file.getPath(), e);
+      throw e;
+    } finally {
+      try {
+        out.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          LOG.error("Failed to close trace " + file.getPath(), e);
+          failure = e;
+        }
+      }
+      // callers stop waiting once the failure is set or the thread has ended
+      queue.clear();
+    }
+  }
+
+  /**
+   * Wait for the queued records to be written and the file to be closed by
+   * the writer, for at most the configured close timeout. Throws the writer's
+   * failure if it failed, or an IOException if it did not finish in time, in
+   * which case the writer is interrupted, and closes the file itself whenever
+   * its current write returns.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    try {
+      if (this.offer(END))
+        writerThread.join(closeTimeoutMillis);
+      if (writerThread.isAlive()) {
+        writerThread.interrupt();
+        writerThread.join(INTERRUPT_MILLIS);
+        if (failure == null)
+          failure = new IOException("Timed out after " + closeTimeoutMillis + " ms waiting for trace " + file.getPath() + " to be written");
+      }
+    } catch (InterruptedException e) {
+      writerThread.interrupt();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while closing trace " + file.getPath());
+    }
+    if (dropped.get() > 0)
+      LOG.warn("Dropped " + dropped.get() + " records from trace " + file.getPath());
+    if (failure != null)
+      throw failure;
+  }
+
+  /**
+   * Write a trace as tab-separated text, with a header line before the first
+   * record of each type.
+   */
+  static void print(InputStream in, Writer writer) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+    if (data.readInt() != MAGIC)
+      throw new IOException("Not a decision trace");
+    int version = data.readInt();
+    if (version != VERSION)
+      throw new IOException("Unsupported trace version " + version + ", expected " + VERSION);
+
+    List<String> symbols = new ArrayList<>();
+    boolean deprojectificationHeader = false;
+    boolean evaluationHeader = false;
+    while (true) {
+      int type;
+      try {
+        type = data.readByte();
+      } catch (EOFException e) {
+        break;
+      }
+      try {
+        switch (type) {
+        case SYMBOL:
+          int id = data.readInt();
+          String symbol = data.readUTF();
+          while (symbols.size() <= id)
+            symbols.add(null);
+          symbols.set(id, symbol);
+          break;
+        case DEPROJECTIFICATION:
+          if (!deprojectificationHeader) {
+            writer.write("#type\tsentence\tadj\tprojHead\tverb\tbetween\tbefore\tafter\thead\treason\n");
+            deprojectificationHeader = true;
+          }
+          writer.write("deproj\t" + data.readLong());
+          for (int i = 0; i < 7; i++)
+            writer.write("\t" + data.readInt());
+          writer.write("\t" + symbols.get(data.readInt()) + "\n");
+          break;
+        case EVALUATION:
+          if (!evaluationHeader) {
+            writer.write("#type\tsentence\ttoken\trealHead\tguessedHead\trealLabel\tguessedLabel\n");
+            evaluationHeader = true;
+          }
+          writer.write("eval\t" + data.readLong());
+          for (int i = 0; i < 3; i++)
+            writer.write("\t" + data.readInt());
+          writer.write("\t" + symbols.get(data.readInt()) + "\t" + symbols.get(data.readInt()) + "\n");
+          break;
+        default:
+          throw new IOException("Unknown record type " + type);
+        }
+      } catch (EOFException e) {
+        LOG.warn("Trace truncated in the middle of a record");
+        break;
+      }
+    }
+    writer.flush();
+  }
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> options = ConllLayout.parseArgs(args);
+    if (!options.containsKey("inFile"))
+      throw new IllegalArgumentException("Usage: DecisionTrace --inFile=deprojectifier.trace [--outFile=deprojectifier.tsv]");
+    Writer writer = options.containsKey("outFile") ? Files.newBufferedWriter(new File(options.get("outFile")).toPath(), StandardCharsets.UTF_8)
+        : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+    try (InputStream in = Files.newInputStream(new File(options.get("inFile")).toPath())) {
+      print(in, writer);
+    } finally {
+      if (options.containsKey("outFile"))
+        writer.close();
+      else
+        writer.flush();
+    }
+  }
+}
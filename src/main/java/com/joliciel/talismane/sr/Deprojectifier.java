@@ -2,20 +2,16 @@ package com.joliciel.talismane.sr;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.joliciel.talismane.TalismaneException;
 import com.joliciel.talismane.TalismaneSession;
-import com.joliciel.talismane.lexicon.LexicalEntry;
 import com.joliciel.talismane.parser.DependencyArc;
 import com.joliciel.talismane.parser.ParseConfiguration;
 import com.joliciel.talismane.parser.output.ParseConfigurationProcessor;
@@ -24,268 +20,202 @@ import com.joliciel.talismane.posTagger.PosTaggedToken;
 import com.typesafe.config.Config;
 
 /**
- * A class for recovering the non-projective head in Serbian analysis. Currently
- * limited to recovering the non-projective nominal head of adjectives, in the
- * case where the adjectives precede their direct or indirect projectified
- * verbal governor.
- * 
+ * A class for recovering the non-projective head in Serbian analysis, using
+ * the {@link DeprojectionRule}s configured in
+ * <code>talismane.serbian.deprojectifier.rules</code>. By default, limited to
+ * recovering the non-projective nominal head of adjectives, in the case where
+ * the adjectives precede their direct or indirect projectified verbal
+ * governor.<br/>
+ * <br/>
+ * Rules are compiled at construction into a table indexed by label id, so that
+ * each sentence's arcs are dispatched to their rule in a single pass, however
+ * many rules are configured. A label may only be handled by one rule.<br/>
+ * <br/>
+ * Thread-safe: all per-sentence state is local to
+ * {@link #onNextParseConfiguration(ParseConfiguration)}, and the diagnostic
+ * counts are kept in concurrent counters, so that several threads can
+ * de-projectify sentences in parallel.<br/>
+ * <br/>
+ * If tracing is enabled in <code>talismane.serbian.trace</code>, each decision
+ * is recorded in a {@link DecisionTrace}, in which sentences are numbered in
+ * the order they are received. If metrics are enabled in
+ * <code>talismane.serbian.metrics</code>, each sentence's latency, and the
+ * candidates and agreement checks of its arcs, are recorded in
+ * {@link ProcessorMetrics}.
+ *
  * @author Assaf Urieli
  *
  */
 public class Deprojectifier implements ParseConfigurationProcessor {
   private static final Logger LOG = LoggerFactory.getLogger(Deprojectifier.class);
 
-  private static final Set<String> depsNotForNouns = new HashSet<>(Arrays.asList("ComplPrep", "DepEx_Suj"));
-  private static final Set<String> depsForAdjectives = new HashSet<>(Arrays.asList("Suj", "ObjDir", "Suj-nproj", "ObjDir-nproj"));
-
   private final String nounAdjDep;
-  private Map<String, Integer> invalid = new TreeMap<>();
-
-  public Deprojectifier(TalismaneSession session) {
-    Config config = session.getConfig();
-    nounAdjDep = config.getString("talismane.serbian.deprojectifier.nounAdjDep");
+  private final List<DeprojectionRule> rules = new ArrayList<>();
+  private final DeprojectionRule[] rulesByLabel;
+  private final DecisionTrace trace;
+  private final ProcessorMetrics metrics;
+  private final AtomicLong sentenceCount = new AtomicLong();
+
+  public Deprojectifier(TalismaneSession session) throws IOException {
+    this(session.getConfig());
   }
 
-  @Override
-  public void onNextParseConfiguration(ParseConfiguration parseConfiguration) throws TalismaneException, IOException {
-    for (DependencyArc arc : parseConfiguration.getDependencies()) {
-      parseConfiguration.addManualNonProjectiveDependency(arc.getHead(), arc.getDependent(), arc.getLabel());
-    }
-
-    for (DependencyArc arc : parseConfiguration.getDependencies()) {
-      if (nounAdjDep.equals(arc.getLabel())) {
-        LOG.info(arc.toString());
-
-        PosTaggedToken nonProjHead = arc.getHead();
+  Deprojectifier(Config config) throws IOException {
+    Config deprojectifierConfig = config.getConfig("talismane.serbian.deprojectifier");
+    nounAdjDep = deprojectifierConfig.getString("nounAdjDep");
 
-        boolean dealWithThis = true;
-
-        PosTaggedToken adj = arc.getDependent();
-        if (!"A".equals(adj.getTag().getCode()) && !"Num".equals(adj.getTag().getCode())) {
-          LOG.debug(arc.getLabel() + " dep is " + adj.getTag() + ", expected A or Num");
-          dealWithThis = false;
-          incrementInvalid("Dep " + adj.getTag().getCode());
-        }
-
-        PosTaggedToken verb = arc.getHead();
-        while (!"V_main".equals(verb.getTag().getCode())) {
-          verb = parseConfiguration.getHead(verb);
-          if (verb == null)
-            break;
-        }
-        if (verb == null) {
-          LOG.debug(arc.getLabel() + " verbal head not found");
-          dealWithThis = false;
-          incrementInvalid("No verb gov");
-        }
-
-        if (dealWithThis && adj.getIndex() > verb.getIndex()) {
-          LOG.info(arc.getLabel() + " dep to the right of head, expected left.");
-          dealWithThis = false;
-          incrementInvalid("Dep after verb");
-        }
-
-        List<PosTaggedToken> candidates = new ArrayList<>();
-
-        if (dealWithThis) {
-          PosTagSequence sequence = parseConfiguration.getPosTagSequence();
-          // find the nearest noun or subject pronoun between the verb and the
-          // adjective
-          LOG.debug("Finding noun between adjective and verb");
-          boolean haveVerbalDeps = false;
-          for (int i = adj.getIndex() + 1; i < verb.getIndex(); i++) {
-            PosTaggedToken token = sequence.get(i);
-            LOG.debug("Testing " + token);
-            if (haveVerbalDeps) {
-              if ("N".equals(token.getTag().getCode())) {
-                DependencyArc depArc = parseConfiguration.getGoverningDependency(token);
-                if (!depsNotForNouns.contains(depArc.getLabel())) {
-                  if (morphCompatible(token, adj)) {
-                    candidates.add(token);
-                    break;
-                  }
-                }
-              } else if ("P".equals(token.getTag().getCode())) {
-                // subject pronouns allowed as well
-                DependencyArc depArc = parseConfiguration.getGoverningDependency(token);
-                if (depsForAdjectives.contains(depArc.getLabel())) {
-                  if (morphCompatible(token, adj)) {
-                    candidates.add(token);
-                    break;
-                  }
-                }
-              }
-            }
-            if (parseConfiguration.getHead(token).equals(verb)) {
-              LOG.debug("haveVerbalDeps");
-              haveVerbalDeps = true;
-            }
-          } // tokens between adjective and verb
+    for (Config ruleConfig : deprojectifierConfig.getConfigList("rules")) {
+      Config withDefaults = ruleConfig.withFallback(deprojectifierConfig.getConfig("rule-defaults"));
+      rules.add(new DeprojectionRule(rules.size(), withDefaults, nounAdjDep));
+    }
+    int maxLabel = -1;
+    for (DeprojectionRule rule : rules) {
+      for (String label : rule.labels)
+        maxLabel = Math.max(maxLabel, SentenceGraph.LABELS.intern(label));
+    }
+    rulesByLabel = new DeprojectionRule[maxLabel + 1];
+    for (DeprojectionRule rule : rules) {
+      for (String label : rule.labels) {
+        int id = SentenceGraph.LABELS.getId(label);
+        if (rulesByLabel[id] != null)
+          throw new IllegalArgumentException("Label " + label + " handled by both rule " + rulesByLabel[id].name + " and rule " + rule.name);
+        rulesByLabel[id] = rule;
+      }
+    }
 
-          // find the nearest noun or subject pronoun prior to the adjective
-          // and separated by verbal dependencies
-          haveVerbalDeps = false;
-          LOG.debug("Finding noun before adjective");
-          for (int i = adj.getIndex() - 1; i > 0; i--) {
-            PosTaggedToken token = sequence.get(i);
-            LOG.debug("Testing " + token);
-            if (haveVerbalDeps) {
-              if ("N".equals(token.getTag().getCode())) {
-                DependencyArc depArc = parseConfiguration.getGoverningDependency(token);
-                if (!depsNotForNouns.contains(depArc.getLabel())) {
-                  if (morphCompatible(token, adj)) {
-                    if (morphCompatible(token, adj)) {
-                      candidates.add(token);
-                      break;
-                    }
-                  }
-                }
-              } else if ("P".equals(token.getTag().getCode())) {
-                // subject pronouns allowed as well
-                DependencyArc depArc = parseConfiguration.getGoverningDependency(token);
-                if (depsForAdjectives.contains(depArc.getLabel())) {
-                  if (morphCompatible(token, adj)) {
-                    candidates.add(token);
-                    break;
-                  }
-                }
-              }
-            }
-            if (parseConfiguration.getHead(token).equals(verb)) {
-              LOG.debug("haveVerbalDeps");
-              haveVerbalDeps = true;
-            }
-          } // tokens between adjective and verb
+    trace = DecisionTrace.open(config, "deprojectifier");
+    metrics = ProcessorMetrics.open(config, "deprojectifier");
+  }
 
-          // first noun after the verb
-          LOG.debug("Finding noun after verb");
-          for (int i = verb.getIndex() + 1; i < sequence.size(); i++) {
-            PosTaggedToken token = sequence.get(i);
-            LOG.debug("Testing " + token);
-            if ("N".equals(token.getTag().getCode())) {
-              DependencyArc depArc = parseConfiguration.getGoverningDependency(token);
-              if (!depsNotForNouns.contains(depArc.getLabel())) {
-                if (morphCompatible(token, adj)) {
-                  candidates.add(token);
-                  break;
-                }
-              }
-            } else if ("P".equals(token.getTag().getCode())) {
-              // subject pronouns allowed as well
-              DependencyArc depArc = parseConfiguration.getGoverningDependency(token);
-              if (depsForAdjectives.contains(depArc.getLabel())) {
-                if (morphCompatible(token, adj)) {
-                  candidates.add(token);
-                  break;
-                }
-              }
-            }
-          }
+  /**
+   * The label of projectified adjective-to-noun arcs handled by the default
+   * rule.
+   */
+  public String getNounAdjDep() {
+    return nounAdjDep;
+  }
 
-          if (candidates.size() > 0) {
-            incrementInvalid("valid");
+  /**
+   * The rule handling a given label id, or null if none.
+   */
+  DeprojectionRule getRule(int label) {
+    return label >= 0 && label < rulesByLabel.length ? rulesByLabel[label] : null;
+  }
 
-            PosTaggedToken bestCandidate = null;
-            int minDistance = Integer.MAX_VALUE;
-            for (PosTaggedToken candidate : candidates) {
-              int distance = Math.abs(candidate.getIndex() - adj.getIndex());
-              if (distance < minDistance) {
-                minDistance = distance;
-                bestCandidate = candidate;
-              }
-            }
-            nonProjHead = bestCandidate;
-          } else {
-            incrementInvalid("no candidates");
-          }
-        }
+  List<DeprojectionRule> getRules() {
+    return Collections.unmodifiableList(rules);
+  }
 
-        DependencyArc nonProjArc = null;
-        for (DependencyArc arc1 : parseConfiguration.getNonProjectiveDependencies()) {
-          if (arc1.getDependent().equals(adj)) {
-            nonProjArc = arc1;
-            break;
-          }
-        }
-        if (nonProjArc == null) {
-          LOG.info("Couldn't find non-proj arc!!!");
-        }
+  DecisionTrace getTrace() {
+    return trace;
+  }
 
-        // if we didn't find a non-projective head, we systematically replace
-        // the non-projective head with the projective one, to avoid
-        // skewing results for the training corpus
-        if (nonProjArc != null)
-          parseConfiguration.removeNonProjectiveDependency(nonProjArc);
-        parseConfiguration.addManualNonProjectiveDependency(nonProjHead, adj, arc.getLabel());
-      } // is Dep-nproj or equivalent
-    } // next dependency
+  /**
+   * The metrics recorded, or null if disabled.
+   */
+  ProcessorMetrics getMetrics() {
+    return metrics;
   }
 
-  public boolean morphCompatible(PosTaggedToken head, PosTaggedToken dep) {
-    List<LexicalEntry> headEntries = head.getLexicalEntries();
-    List<LexicalEntry> depEntries = dep.getLexicalEntries();
+  @Override
+  public void onNextParseConfiguration(ParseConfiguration parseConfiguration) throws TalismaneException, IOException {
+    this.deprojectify(parseConfiguration, sentenceCount.getAndIncrement());
+  }
 
-    if (headEntries.size() == 0 || depEntries.size() == 0) {
-      LOG.debug("Entries for " + head + ": " + headEntries.size());
-      LOG.debug("Entries for " + dep + ": " + depEntries.size());
-      LOG.debug("Automatic match");
-      return true;
+  /**
+   * As {@link #onNextParseConfiguration(ParseConfiguration)}, with the sentence
+   * number used in the trace given by the caller.
+   */
+  void deprojectify(ParseConfiguration parseConfiguration, long sentenceId) {
+    long startTime = metrics == null ? 0 : System.nanoTime();
+    for (DependencyArc arc : parseConfiguration.getDependencies()) {
+      parseConfiguration.addManualNonProjectiveDependency(arc.getHead(), arc.getDependent(), arc.getLabel());
     }
 
-    for (LexicalEntry headEntry : headEntries) {
-      LOG.debug("head entry for " + head + ": " + headEntry);
-      Set<String> headGenders = headEntry.getGender().stream().filter(g -> !("-".equals(g))).collect(Collectors.toSet());
-      for (LexicalEntry depEntry : depEntries) {
-        LOG.debug("dep entry for " + dep + ": " + depEntry);
-        Set<String> commonGenders = new HashSet<>(headGenders);
-        commonGenders.retainAll(depEntry.getGender());
-        if (headGenders.size() > 0 && depEntry.getGender().size() > 0 && commonGenders.size() == 0) {
-          LOG.debug("No match on " + head + " and " + dep + ". Gender: " + headEntry.getGender() + " vs " + depEntry.getGender());
-          continue;
-        }
+    PosTagSequence sequence = parseConfiguration.getPosTagSequence();
+    SentenceGraph graph = SentenceGraph.of(parseConfiguration);
+    int[][] candidates = null;
+    DependencyArc[] nonProjArcs = null;
 
-        Set<String> commonNumbers = new HashSet<>(headEntry.getNumber());
-        commonNumbers.retainAll(depEntry.getNumber());
-        if (headEntry.getNumber().size() > 0 && depEntry.getNumber().size() > 0 && commonNumbers.size() == 0) {
-          LOG.debug("No match on " + head + " and " + dep + ". Number: " + headEntry.getNumber() + " vs " + depEntry.getNumber());
-          continue;
-        }
-
-        Set<String> commonCases = new HashSet<>(headEntry.getCase());
-        commonCases.retainAll(depEntry.getCase());
-        if (headEntry.getCase().size() > 0 && depEntry.getCase().size() > 0 && commonCases.size() == 0) {
-          LOG.debug("No match on " + head + " and " + dep + ". Case: " + headEntry.getCase() + " vs " + depEntry.getCase());
-          continue;
-        }
-
-        LOG.debug("Match on " + head + " and " + dep + ". Case: " + headEntry.getCase() + " vs " + depEntry.getCase() + ". Gender: " + headEntry.getGender()
-            + " vs " + depEntry.getGender() + ". Number: " + headEntry.getNumber() + " vs " + depEntry.getNumber());
-        return true;
+    for (DependencyArc arc : parseConfiguration.getDependencies()) {
+      PosTaggedToken dep = arc.getDependent();
+      int depIndex = dep.getIndex();
+      DeprojectionRule rule = this.getRule(graph.getLabel(depIndex));
+      if (rule == null)
+        continue;
+
+      if (candidates == null) {
+        candidates = new int[rules.size()][];
+        nonProjArcs = this.getNonProjectiveArcs(parseConfiguration, graph.size());
       }
-    }
+      if (candidates[rule.index] == null)
+        candidates[rule.index] = rule.getCandidates(graph);
+      if (metrics != null)
+        metrics.arc(candidates[rule.index].length);
+
+      int nonProjHead = rule.findNonProjectiveHead(graph, candidates[rule.index], sentenceId, depIndex, arc.getHead().getIndex(), trace);
+
+      DependencyArc nonProjArc = nonProjArcs[depIndex];
+      if (nonProjArc == null && LOG.isDebugEnabled())
+        LOG.debug("Couldn't find non-proj arc for " + arc);
+
+      // if we didn't find a non-projective head, we systematically replace
+      // the non-projective head with the projective one, to avoid
+      // skewing results for the training corpus
+      if (nonProjArc != null)
+        parseConfiguration.removeNonProjectiveDependency(nonProjArc);
+      parseConfiguration.addManualNonProjectiveDependency(sequence.get(nonProjHead), dep, arc.getLabel());
+    } // next dependency
 
-    LOG.debug("No match found");
-    return false;
+    if (metrics != null) {
+      metrics.agreementChecks(graph.getAgreementChecks());
+      metrics.sentence(sentenceId, graph.size() - 1, System.nanoTime() - startTime);
+    }
   }
 
-  private void incrementInvalid(String key) {
-    if (invalid.containsKey(key)) {
-      int count = invalid.get(key);
-      invalid.put(key, count + 1);
-    } else {
-      invalid.put(key, 1);
+  /**
+   * The first non-projective arc governing each token, indexed by dependent.
+   */
+  private DependencyArc[] getNonProjectiveArcs(ParseConfiguration parseConfiguration, int size) {
+    DependencyArc[] nonProjArcs = new DependencyArc[size];
+    for (DependencyArc arc : parseConfiguration.getNonProjectiveDependencies()) {
+      int dep = arc.getDependent().getIndex();
+      if (nonProjArcs[dep] == null)
+        nonProjArcs[dep] = arc;
     }
+    return nonProjArcs;
+  }
+
+  /**
+   * Whether any lexical entry of the head agrees in gender, number and case
+   * with any lexical entry of the dependent. Tokens without lexical entries
+   * agree with everything.
+   */
+  public boolean morphCompatible(PosTaggedToken head, PosTaggedToken dep) {
+    if (metrics != null)
+      metrics.agreementChecks(1);
+    return Morphology.agree(Morphology.of(head.getLexicalEntries()), Morphology.of(dep.getLexicalEntries()));
   }
 
   @Override
   public void onCompleteParse() throws IOException {
-    LOG.info("Counts");
-    for (String key : invalid.keySet()) {
-      LOG.info(key + ": " + invalid.get(key));
+    for (DeprojectionRule rule : rules) {
+      LOG.info("Counts for " + rule.name);
+      for (Map.Entry<String, Long> count : rule.getCounts().entrySet()) {
+        LOG.info(count.getKey() + ": " + count.getValue());
+      }
     }
+    if (trace != null)
+      trace.close();
+    if (metrics != null)
+      metrics.close();
   }
 
   @Override
   public void close() throws IOException {
+    if (trace != null)
+      trace.close();
+    if (metrics != null)
+      metrics.close();
   }
 }
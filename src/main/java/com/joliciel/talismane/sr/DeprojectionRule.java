@@ -0,0 +1,223 @@
+package com.joliciel.talismane.sr;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.typesafe.config.Config;
+
+/**
+ * A rule for recovering the non-projective head of dependents attached to a
+ * projectified governor with one of the rule's labels, as configured in
+ * <code>talismane.serbian.deprojectifier.rules</code>.<br/>
+ * <br/>
+ * The dependent must precede its nearest governor with one of the
+ * governor-tags on the projective head chain (its "verb"). The non-projective
+ * head is the nearest candidate which agrees with the dependent, found
+ * between the verb and the dependent after the verb's first dependent
+ * following the dependent, before the dependent and separated from it by a
+ * verbal dependent, or after the verb. Otherwise, the projective head is
+ * kept.<br/>
+ * <br/>
+ * Candidates are tokens with one of the candidate tags, optionally restricted
+ * to given projective labels, or excluding given labels. Tag codes and labels
+ * are compiled to interned ids, so that applying a rule involves no string
+ * comparisons.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class DeprojectionRule {
+  final int index;
+  final String name;
+  final List<String> labels;
+
+  private final BitSet dependentTags;
+  private final BitSet governorTags;
+  private final boolean verbalGovernor;
+  private final BitSet candidateTags = new BitSet();
+  private final BitSet[] allowedLabels;
+  private final BitSet[] excludedLabels;
+  private final boolean agreement;
+
+  private final ReasonCounts reasons = new ReasonCounts();
+  private final int noVerbGov = reasons.getId("No verb gov");
+  private final int depAfterVerb = reasons.getId("Dep after verb");
+  private final int valid = reasons.getId("valid");
+  private final int noCandidates = reasons.getId("no candidates");
+
+  /**
+   * @param defaultLabel
+   *          the label handled if the rule doesn't list any
+   */
+  DeprojectionRule(int index, Config config, String defaultLabel) {
+    this.index = index;
+    this.name = config.getString("name");
+    this.labels = config.hasPath("labels") ? config.getStringList("labels") : Collections.singletonList(defaultLabel);
+    this.dependentTags = ids(SentenceGraph.TAGS, config.getStringList("dependent-tags"));
+    this.governorTags = ids(SentenceGraph.TAGS, config.getStringList("governor-tags"));
+    BitSet verbal = new BitSet();
+    verbal.set(SentenceGraph.TAG_V_MAIN);
+    this.verbalGovernor = governorTags.equals(verbal);
+    this.agreement = config.getBoolean("agreement");
+
+    List<? extends Config> candidateConfigs = config.getConfigList("candidates");
+    for (Config candidateConfig : candidateConfigs)
+      candidateTags.or(ids(SentenceGraph.TAGS, candidateConfig.getStringList("tags")));
+    this.allowedLabels = new BitSet[candidateTags.length()];
+    this.excludedLabels = new BitSet[candidateTags.length()];
+    for (Config candidateConfig : candidateConfigs) {
+      BitSet tags = ids(SentenceGraph.TAGS, candidateConfig.getStringList("tags"));
+      BitSet allowed = candidateConfig.hasPath("labels") ? ids(SentenceGraph.LABELS, candidateConfig.getStringList("labels")) : null;
+      BitSet excluded = candidateConfig.hasPath("excluded-labels") ? ids(SentenceGraph.LABELS, candidateConfig.getStringList("excluded-labels")) : null;
+      for (int tag = tags.nextSetBit(0); tag >= 0; tag = tags.nextSetBit(tag + 1)) {
+        allowedLabels[tag] = allowed;
+        excludedLabels[tag] = excluded;
+      }
+    }
+  }
+
+  private static BitSet ids(SymbolTable symbols, List<String> values) {
+    BitSet ids = new BitSet();
+    for (String value : values)
+      ids.set(symbols.intern(value));
+    return ids;
+  }
+
+  /**
+   * The sorted indexes of all tokens which can serve as a non-projective head
+   * for this rule.
+   */
+  int[] getCandidates(SentenceGraph graph) {
+    int[] candidates = new int[graph.size()];
+    int count = 0;
+    for (int i = 1; i < graph.size(); i++) {
+      int tag = graph.getTag(i);
+      int label = graph.getLabel(i);
+      if (label < 0 || !candidateTags.get(tag))
+        continue;
+      if (excludedLabels[tag] != null && excludedLabels[tag].get(label))
+        continue;
+      if (allowedLabels[tag] != null && !allowedLabels[tag].get(label))
+        continue;
+      candidates[count++] = i;
+    }
+    return Arrays.copyOf(candidates, count);
+  }
+
+  /**
+   * Find the non-projective head of a dependent attached to the projective
+   * head provided with one of this rule's labels.
+   *
+   * @param candidates
+   *          the result of {@link #getCandidates(SentenceGraph)} for this
+   *          sentence
+   * @param sentenceId
+   *          the sentence number, for the trace only
+   * @param trace
+   *          the trace to record the decision in, or null
+   * @return the index of the non-projective head, which is the projective head
+   *         itself if no better candidate was found
+   */
+  int findNonProjectiveHead(SentenceGraph graph, int[] candidates, long sentenceId, int depIndex, int projHead, DecisionTrace trace) {
+    int reason = -1;
+
+    int depTag = graph.getTag(depIndex);
+    if (!dependentTags.get(depTag)) {
+      reason = reasons.getId("Dep " + SentenceGraph.TAGS.getSymbol(depTag));
+      reasons.increment(reason);
+    }
+
+    int verb = verbalGovernor ? graph.getVerbalGovernor(projHead) : graph.getGovernor(projHead, governorTags);
+    if (verb < 0) {
+      if (reason < 0)
+        reason = noVerbGov;
+      reasons.increment(noVerbGov);
+    }
+
+    if (reason < 0 && depIndex > verb) {
+      reason = depAfterVerb;
+      reasons.increment(depAfterVerb);
+    }
+
+    if (reason >= 0) {
+      if (trace != null)
+        trace.deprojectified(sentenceId, depIndex, projHead, verb, -1, -1, -1, projHead, name + ": " + reasons.getReason(reason));
+      return projHead;
+    }
+
+    int bestCandidate = -1;
+    int minDistance = Integer.MAX_VALUE;
+
+    // find the nearest candidate between the verb and the dependent, after
+    // the first verbal dependent
+    int between = -1;
+    int verbalDep = graph.getFirstDependentAfter(verb, depIndex);
+    if (verbalDep >= 0 && verbalDep < verb)
+      between = this.findCandidate(graph, candidates, verbalDep + 1, verb, depIndex, true);
+    if (between >= 0 && Math.abs(between - depIndex) < minDistance) {
+      minDistance = Math.abs(between - depIndex);
+      bestCandidate = between;
+    }
+
+    // find the nearest candidate prior to the dependent and separated by
+    // verbal dependencies
+    int before = -1;
+    verbalDep = graph.getLastDependentBefore(verb, depIndex);
+    if (verbalDep > 0)
+      before = this.findCandidate(graph, candidates, 1, verbalDep, depIndex, false);
+    if (before >= 0 && Math.abs(before - depIndex) < minDistance) {
+      minDistance = Math.abs(before - depIndex);
+      bestCandidate = before;
+    }
+
+    // first candidate after the verb
+    int after = this.findCandidate(graph, candidates, verb + 1, graph.size(), depIndex, true);
+    if (after >= 0 && Math.abs(after - depIndex) < minDistance) {
+      minDistance = Math.abs(after - depIndex);
+      bestCandidate = after;
+    }
+
+    reason = bestCandidate >= 0 ? valid : noCandidates;
+    reasons.increment(reason);
+    int head = bestCandidate >= 0 ? bestCandidate : projHead;
+    if (trace != null)
+      trace.deprojectified(sentenceId, depIndex, projHead, verb, between, before, after, head, name + ": " + reasons.getReason(reason));
+    return head;
+  }
+
+  /**
+   * Find the candidate closest to the start of the range [from, to) which is
+   * compatible with the dependent - scanning forwards from from if ascending,
+   * or backwards from to otherwise.
+   *
+   * @return the candidate's index, or -1 if none found
+   */
+  private int findCandidate(SentenceGraph graph, int[] candidates, int from, int to, int dep, boolean ascending) {
+    if (from >= to)
+      return -1;
+    int first = SentenceGraph.lowerBound(candidates, 0, candidates.length, from);
+    int last = SentenceGraph.lowerBound(candidates, first, candidates.length, to);
+    if (ascending) {
+      for (int i = first; i < last; i++) {
+        if (!agreement || graph.agrees(candidates[i], dep))
+          return candidates[i];
+      }
+    } else {
+      for (int i = last - 1; i >= first; i--) {
+        if (!agreement || graph.agrees(candidates[i], dep))
+          return candidates[i];
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * A snapshot of this rule's diagnostic counts, sorted by reason.
+   */
+  Map<String, Long> getCounts() {
+    return reasons.getCounts();
+  }
+}
@@ -0,0 +1,250 @@
+package com.joliciel.talismane.sr;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.joliciel.talismane.lexicon.LexicalEntry;
+
+/**
+ * Packs the gender, number, case and person of a lexical entry into a single
+ * long, with one 16-bit field per attribute and one bit per attribute value,
+ * so that morphological agreement can be tested with a few bitwise operations
+ * and no allocation.<br/>
+ * <br/>
+ * All values found in the ParCoLab tag maps, including the unspecified
+ * <code>-</code> and the <code>m-</code>, <code>f-</code>, <code>n-</code> and
+ * <code>0</code> genders, are assigned fixed bits, so that packed values are
+ * stable from one run to the next. Any other value is assigned the next free
+ * bit in its field on first sight, with the last bit shared by all values
+ * beyond the field's capacity.<br/>
+ * <br/>
+ * Lexical entries are always packed from their own gender, number, case and
+ * person. Morphology tags read from CoNLL files can be looked up in a
+ * {@link TagDictionary} rather than parsed, with the same result.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class Morphology {
+  static final int GENDER = 0;
+  static final int NUMBER = 1;
+  static final int CASE = 2;
+  static final int PERSON = 3;
+
+  private static final int FIELD_BITS = 16;
+  private static final long FIELD_MASK = 0xFFFFL;
+
+  /**
+   * The bit for the "-" gender, which is ignored on the head side when testing
+   * agreement.
+   */
+  static final long GENDER_NONE = 1L;
+
+  private static final long[] NO_ENTRIES = new long[0];
+  private static final int MAX_CACHE_SIZE = 1000000;
+
+  private static final ValueBits[] fields = new ValueBits[] { new ValueBits("-", "m", "f", "n", "m-", "f-", "n-", "0"),
+      new ValueBits("sg", "pl", "-"), new ValueBits("nom", "gen", "dat", "acc", "voc", "ins", "loc", "-"), new ValueBits("1", "2", "3", "-") };
+
+  /**
+   * The attribute held by each part of a ParCoLab tag, by part-of-speech, the
+   * first two parts being the part-of-speech and its category.
+   */
+  private static final Map<String, int[]> tagLayouts = new HashMap<>();
+
+  static {
+    tagLayouts.put("A", new int[] { -1, -1, CASE, NUMBER, GENDER });
+    tagLayouts.put("N", new int[] { -1, -1, CASE, NUMBER, GENDER });
+    tagLayouts.put("Num", new int[] { -1, -1, GENDER, NUMBER, CASE });
+    tagLayouts.put("P", new int[] { -1, -1, PERSON, NUMBER, GENDER, CASE });
+    tagLayouts.put("V", new int[] { -1, -1, -1, PERSON, NUMBER, GENDER });
+  }
+
+  private static final ConcurrentMap<LexicalEntry, Long> cache = new ConcurrentHashMap<>();
+
+  private Morphology() {
+  }
+
+  /**
+   * The packed morphology of a lexical entry, cached per entry.
+   */
+  public static long of(LexicalEntry entry) {
+    Long packed = cache.get(entry);
+    if (packed == null) {
+      packed = pack(entry.getGender(), entry.getNumber(), entry.getCase(), entry.getPerson());
+      if (cache.size() >= MAX_CACHE_SIZE)
+        cache.clear();
+      cache.put(entry, packed);
+    }
+    return packed;
+  }
+
+  /**
+   * The packed morphology of each of a token's lexical entries.
+   */
+  public static long[] of(List<LexicalEntry> entries) {
+    if (entries.size() == 0)
+      return NO_ENTRIES;
+    long[] packed = new long[entries.size()];
+    for (int i = 0; i < packed.length; i++)
+      packed[i] = of(entries.get(i));
+    return packed;
+  }
+
+  public static long pack(List<String> genders, List<String> numbers, List<String> cases, List<String> persons) {
+    return field(GENDER, genders) | field(NUMBER, numbers) | field(CASE, cases) | field(PERSON, persons);
+  }
+
+  /**
+   * As {@link #parse(String)}, looking the morphology up in a compiled tag
+   * dictionary first, if one is given.
+   */
+  public static long parse(String morphology, TagDictionary tagDictionary) {
+    if (tagDictionary != null && morphology != null) {
+      int index = tagDictionary.find(morphology);
+      if (index >= 0)
+        return tagDictionary.getMorphology(index);
+    }
+    return parse(morphology);
+  }
+
+  /**
+   * Pack a morphology string as found in a CoNLL file, either as
+   * <code>key=value,value|key=value</code> pairs (keys g, n, c and p or their
+   * long forms), or as a ParCoLab tag such as <code>A_dem_acc_pl_f_-</code>,
+   * in which case values are assigned to attributes by their position, as
+   * given for the tag's part-of-speech in the tag maps. Every value is kept,
+   * including <code>-</code>. Returns 0 for an empty morphology, or a tag
+   * whose part-of-speech has no morphology.
+   */
+  public static long parse(String morphology) {
+    if (morphology == null || morphology.length() == 0 || "_".equals(morphology))
+      return 0;
+    long packed = 0;
+    if (morphology.indexOf('=') >= 0) {
+      for (String pair : morphology.split("\\|")) {
+        int equals = pair.indexOf('=');
+        if (equals < 0)
+          continue;
+        int field = fieldForKey(pair.substring(0, equals));
+        if (field < 0)
+          continue;
+        for (String value : pair.substring(equals + 1).split(","))
+          packed |= bit(field, value);
+      }
+    } else {
+      String[] parts = morphology.split("_");
+      int[] layout = tagLayouts.get(parts[0]);
+      if (layout == null)
+        return 0;
+      for (int i = 0; i < parts.length && i < layout.length; i++) {
+        if (layout[i] >= 0 && parts[i].length() > 0)
+          packed |= bit(layout[i], parts[i]);
+      }
+    }
+    return packed;
+  }
+
+  private static int fieldForKey(String key) {
+    switch (key) {
+    case "g":
+    case "gender":
+      return GENDER;
+    case "n":
+    case "number":
+      return NUMBER;
+    case "c":
+    case "case":
+      return CASE;
+    case "p":
+    case "person":
+      return PERSON;
+    default:
+      return -1;
+    }
+  }
+
+  private static long field(int field, List<String> values) {
+    long bits = 0;
+    for (String value : values)
+      bits |= fields[field].getBit(value);
+    return bits << (field * FIELD_BITS);
+  }
+
+  /**
+   * The bit for a given attribute value, already shifted into its field.
+   */
+  static long bit(int field, String value) {
+    return fields[field].getBit(value) << (field * FIELD_BITS);
+  }
+
+  static long getField(long packed, int field) {
+    return (packed >>> (field * FIELD_BITS)) & FIELD_MASK;
+  }
+
+  /**
+   * Two packed entries agree if, for each of gender, number and case, either
+   * side is unspecified or they share at least one value. The "-" gender is
+   * ignored for the head.
+   */
+  public static boolean agree(long head, long dep) {
+    long headGender = getField(head, GENDER) & ~GENDER_NONE;
+    long depGender = getField(dep, GENDER);
+    if (headGender != 0 && depGender != 0 && (headGender & depGender) == 0)
+      return false;
+    long headNumber = getField(head, NUMBER);
+    long depNumber = getField(dep, NUMBER);
+    if (headNumber != 0 && depNumber != 0 && (headNumber & depNumber) == 0)
+      return false;
+    long headCase = getField(head, CASE);
+    long depCase = getField(dep, CASE);
+    if (headCase != 0 && depCase != 0 && (headCase & depCase) == 0)
+      return false;
+    return true;
+  }
+
+  /**
+   * True if any head entry agrees with any dependent entry, or if either side
+   * has no entries at all.
+   */
+  public static boolean agree(long[] headEntries, long[] depEntries) {
+    if (headEntries.length == 0 || depEntries.length == 0)
+      return true;
+    for (long head : headEntries) {
+      for (long dep : depEntries) {
+        if (agree(head, dep))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  private static final class ValueBits {
+    private final Map<String, Long> bits = new HashMap<>();
+    private volatile Map<String, Long> snapshot;
+
+    ValueBits(String... values) {
+      for (String value : values)
+        bits.put(value, 1L << bits.size());
+      snapshot = new HashMap<>(bits);
+    }
+
+    long getBit(String value) {
+      Long bit = snapshot.get(value);
+      if (bit != null)
+        return bit;
+      synchronized (this) {
+        bit = bits.get(value);
+        if (bit == null) {
+          bit = 1L << Math.min(bits.size(), FIELD_BITS - 1);
+          bits.put(value, bit);
+          snapshot = new HashMap<>(bits);
+        }
+        return bit;
+      }
+    }
+  }
+}
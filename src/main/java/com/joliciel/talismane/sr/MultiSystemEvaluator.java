@@ -0,0 +1,180 @@
+package com.joliciel.talismane.sr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.joliciel.talismane.TalismaneException;
+import com.joliciel.talismane.TalismaneSession;
+import com.joliciel.talismane.parser.ParseConfiguration;
+import com.joliciel.talismane.parser.ParserAnnotatedCorpusReader;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Evaluates the non-projective labels/heads of several parser outputs against
+ * the same gold corpus in a single pass. The gold file is read once, and all
+ * evaluation files are read in lockstep with it, sentence by sentence, each
+ * sentence being scored by {@link NonProjectiveEvaluator}, with the same token
+ * alignment.<br/>
+ * <br/>
+ * Usage:
+ *
+ * <pre>
+ * java -Dconfig.file=conf/talismane-sr-nonproj-eval.conf -cp talismane_sr-0.0.1-SNAPSHOT.jar com.joliciel.talismane.sr.MultiSystemEvaluator --goldFile=corpus-proj/test-proj.conll --evalFiles=baseline.conll,c.conll --outDir=corpus-eval-results/
+ * </pre>
+ *
+ * Other options are: names (a comma-separated name for each evaluation file,
+ * by default the file name without its extension), sessionId (default sr) and
+ * encoding (default UTF-8). As when comparing with Talismane, the gold file is
+ * read with the session's <code>parser.input</code> settings, and the
+ * evaluation files with its <code>parser.evaluate</code> settings, including
+ * their corpus rules.<br/>
+ * <br/>
+ * For each system, writes <code>[name].nproj-fscores.csv</code> and
+ * <code>[name].nproj-confusion.tsv</code>, and then a combined
+ * <code>nproj-comparison.csv</code> with each system's precision, recall and
+ * f-score for each label.
+ *
+ * @author Assaf Urieli
+ *
+ */
+public class MultiSystemEvaluator {
+  private static final Logger LOG = LoggerFactory.getLogger(MultiSystemEvaluator.class);
+
+  private final TalismaneSession session;
+  private final Config inputConfig;
+  private final Config evaluateConfig;
+
+  public MultiSystemEvaluator(TalismaneSession session) {
+    this.session = session;
+    String parserPath = "talismane.core." + session.getSessionId() + ".parser";
+    this.inputConfig = session.getConfig().getConfig(parserPath + ".input");
+    this.evaluateConfig = session.getConfig().getConfig(parserPath + ".evaluate");
+  }
+
+  public static void main(String[] args) throws IOException, ReflectiveOperationException, TalismaneException {
+    Map<String, String> options = ConllLayout.parseArgs(args);
+    if (!options.containsKey("goldFile") || !options.containsKey("evalFiles") || !options.containsKey("outDir"))
+      throw new IllegalArgumentException("Usage: MultiSystemEvaluator --goldFile=gold.conll --evalFiles=eval1.conll,eval2.conll --outDir=results/ [--names=name1,name2]");
+
+    Charset charset = options.containsKey("encoding") ? Charset.forName(options.get("encoding")) : StandardCharsets.UTF_8;
+    String sessionId = options.containsKey("sessionId") ? options.get("sessionId") : "sr";
+    File goldFile = new File(options.get("goldFile"));
+    List<File> evalFiles = new ArrayList<>();
+    for (String evalFile : options.get("evalFiles").split(","))
+      evalFiles.add(new File(evalFile));
+
+    List<String> names = new ArrayList<>();
+    if (options.containsKey("names")) {
+      for (String name : options.get("names").split(","))
+        names.add(name);
+      if (names.size() != evalFiles.size())
+        throw new IllegalArgumentException("Expected " + evalFiles.size() + " names, got " + names.size());
+    } else {
+      for (File evalFile : evalFiles) {
+        String name = evalFile.getName();
+        names.add(name.indexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name);
+      }
+    }
+
+    File outDir = new File(options.get("outDir"));
+    outDir.mkdirs();
+
+    TalismaneSession session = new TalismaneSession(ConfigFactory.load(), sessionId);
+    MultiSystemEvaluator evaluator = new MultiSystemEvaluator(session);
+    List<ConfusionMatrix> matrices = evaluator.evaluate(goldFile, evalFiles, charset);
+
+    for (int i = 0; i < names.size(); i++) {
+      ConfusionMatrix matrix = matrices.get(i);
+      matrix.save(new File(outDir, names.get(i) + ".nproj-confusion.tsv"));
+      try (Writer writer = Files.newBufferedWriter(new File(outDir, names.get(i) + ".nproj-fscores.csv").toPath(), charset)) {
+        matrix.getFScoreCalculator().writeScoresToCSV(writer);
+        writer.flush();
+      }
+      LOG.info(names.get(i) + " f-score: " + matrix.getTotalFScore());
+    }
+
+    try (Writer writer = Files.newBufferedWriter(new File(outDir, "nproj-comparison.csv").toPath(), charset)) {
+      writeComparison(names, matrices, writer);
+    }
+  }
+
+  /**
+   * Evaluate each file against the gold file, returning one confusion matrix
+   * per evaluation file.
+   */
+  public List<ConfusionMatrix> evaluate(File goldFile, List<File> evalFiles, Charset charset)
+      throws IOException, ReflectiveOperationException, TalismaneException {
+    List<ConfusionMatrix> matrices = new ArrayList<>();
+    List<Reader> readers = new ArrayList<>();
+    try {
+      Reader goldReader = Files.newBufferedReader(goldFile.toPath(), charset);
+      readers.add(goldReader);
+      ParserAnnotatedCorpusReader goldCorpusReader = ParserAnnotatedCorpusReader.getCorpusReader(goldReader, inputConfig, session);
+      List<ParserAnnotatedCorpusReader> evalCorpusReaders = new ArrayList<>();
+      for (File evalFile : evalFiles) {
+        Reader evalReader = Files.newBufferedReader(evalFile.toPath(), charset);
+        readers.add(evalReader);
+        evalCorpusReaders.add(ParserAnnotatedCorpusReader.getCorpusReader(evalReader, evaluateConfig, session));
+        matrices.add(new ConfusionMatrix());
+      }
+
+      long sentenceCount = 0;
+      while (goldCorpusReader.hasNextConfiguration()) {
+        ParseConfiguration realConfiguration = goldCorpusReader.nextConfiguration();
+        for (int i = 0; i < evalFiles.size(); i++) {
+          ParserAnnotatedCorpusReader evalCorpusReader = evalCorpusReaders.get(i);
+          if (!evalCorpusReader.hasNextConfiguration())
+            throw new TalismaneException("Evaluation file " + evalFiles.get(i).getPath() + " has fewer sentences than the gold file ("
+                + sentenceCount + ")");
+          NonProjectiveEvaluator.evaluate(realConfiguration, evalCorpusReader.nextConfiguration(), matrices.get(i), sentenceCount, null);
+        }
+        sentenceCount++;
+      }
+    } finally {
+      for (Reader reader : readers)
+        reader.close();
+    }
+    return matrices;
+  }
+
+  /**
+   * Write one line per label, with each system's precision, recall and
+   * f-score, followed by a line with each system's total f-score.
+   */
+  static void writeComparison(List<String> names, List<ConfusionMatrix> matrices, Writer writer) throws IOException {
+    Set<String> labels = new TreeSet<>();
+    for (ConfusionMatrix matrix : matrices)
+      labels.addAll(matrix.getLabels());
+
+    writer.write("label");
+    for (String name : names)
+      writer.write("," + name + " precision," + name + " recall," + name + " f-score");
+    writer.write("\n");
+    for (String label : labels) {
+      writer.write(label);
+      for (ConfusionMatrix matrix : matrices)
+        writer.write(String.format(Locale.US, ",%.4f,%.4f,%.4f", matrix.getPrecision(label), matrix.getRecall(label), matrix.getFScore(label)));
+      writer.write("\n");
+    }
+    writer.write("TOTAL");
+    for (ConfusionMatrix matrix : matrices)
+      writer.write(String.format(Locale.US, ",,,%.4f", matrix.getTotalFScore()));
+    writer.write("\n");
+    writer.flush();
+  }
+}
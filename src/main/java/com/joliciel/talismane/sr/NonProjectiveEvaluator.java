@@ -2,14 +2,23 @@ package com.joliciel.talismane.sr;
 
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +32,7 @@ import com.joliciel.talismane.posTagger.PosTag;
 import com.joliciel.talismane.posTagger.PosTagSequence;
 import com.joliciel.talismane.posTagger.PosTaggedToken;
 import com.joliciel.talismane.stats.FScoreCalculator;
+import com.typesafe.config.Config;
 
 /**
  * Evaluate non-projective labels/heads for Serbian.<br/>
@@ -30,21 +40,28 @@ import com.joliciel.talismane.stats.FScoreCalculator;
  * In order to concentrate on cases we handle, it splits the evaluation by head
  * tag/dep tag, as well as indicating whether adjective with a non-projective
  * label precedes its direct or indirect projectified verbal governor, and if it
- * even has a verbal governor.
+ * even has a verbal governor.<br/>
+ * <br/>
+ * Results are accumulated in a {@link ConfusionMatrix}, which is saved next to
+ * the f-score file, so that the results for several shards of a corpus can be
+ * merged later on. If <code>talismane.serbian.nonproj-evaluator.threads</code>
+ * is greater than 1, sentences are evaluated in parallel, each thread filling
+ * its own matrix, with all matrices merged at the end.<br/>
+ * <br/>
+ * If tracing is enabled in <code>talismane.serbian.trace</code>, the real and
+ * guessed label of each non-projective token are recorded in a
+ * {@link DecisionTrace}. If metrics are enabled in
+ * <code>talismane.serbian.metrics</code>, the time taken to evaluate each
+ * sentence is recorded in {@link ProcessorMetrics}.
  * 
  * @author Assaf Urieli
  *
  */
 public class NonProjectiveEvaluator implements ParseEvaluationObserver {
   private static final Logger LOG = LoggerFactory.getLogger(NonProjectiveEvaluator.class);
-  private final Writer writer;
-  private final FScoreCalculator<String> fscoreCalculator = new FScoreCalculator<String>();
-  private Map<String, String> tagMap = new HashMap<>();
-
-  public NonProjectiveEvaluator(File outDir, TalismaneSession session) throws FileNotFoundException {
-    File fscoreFile = new File(outDir, session.getBaseName() + ".nproj-fscores.csv");
-    this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fscoreFile, false), session.getCsvCharset()));
+  private static final Map<String, String> tagMap = new HashMap<>();
 
+  static {
     tagMap.put("A", "Adj");
     tagMap.put("Abr", "Adv");
     tagMap.put("Adv", "Adv");
@@ -63,14 +80,128 @@ public class NonProjectiveEvaluator implements ParseEvaluationObserver {
     tagMap.put("Z", "X");
   }
 
+  private final Writer writer;
+  private final File matrixFile;
+  private final ConfusionMatrix confusionMatrix = new ConfusionMatrix();
+  private final ExecutorService executor;
+  private final int maxPending;
+  private final Deque<Future<?>> pending = new ArrayDeque<>();
+  private final DecisionTrace trace;
+  private final ProcessorMetrics metrics;
+  private long sentenceCount = 0;
+  private final List<ConfusionMatrix> shards = Collections.synchronizedList(new ArrayList<>());
+  private final ThreadLocal<ConfusionMatrix> shard = ThreadLocal.withInitial(() -> {
+    ConfusionMatrix matrix = new ConfusionMatrix();
+    shards.add(matrix);
+    return matrix;
+  });
+
+  public NonProjectiveEvaluator(File outDir, TalismaneSession session) throws IOException {
+    File fscoreFile = new File(outDir, session.getBaseName() + ".nproj-fscores.csv");
+    this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fscoreFile, false), session.getCsvCharset()));
+    this.matrixFile = new File(outDir, session.getBaseName() + ".nproj-confusion.tsv");
+
+    Config config = session.getConfig().getConfig("talismane.serbian.nonproj-evaluator");
+    int threads = config.getInt("threads");
+    if (threads <= 0)
+      threads = Runtime.getRuntime().availableProcessors();
+    this.maxPending = Math.max(1, config.getInt("max-pending"));
+    this.trace = DecisionTrace.open(session.getConfig(), "nonproj-evaluator");
+    this.metrics = ProcessorMetrics.open(session.getConfig(), "nonproj-evaluator");
+    if (threads > 1) {
+      AtomicInteger threadCount = new AtomicInteger();
+      this.executor = Executors.newFixedThreadPool(threads, r -> {
+        Thread thread = new Thread(r, "nproj-evaluator-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    } else {
+      this.executor = null;
+    }
+  }
+
   @Override
   public void onParseStart(ParseConfiguration realConfiguration, List<PosTagSequence> posTagSequences) {
   }
 
   @Override
   public void onParseEnd(ParseConfiguration realConfiguration, List<ParseConfiguration> guessedConfigurations) throws TalismaneException, IOException {
-    PosTagSequence posTagSequence = realConfiguration.getPosTagSequence();
     ParseConfiguration bestGuess = guessedConfigurations.get(0);
+    long sentenceId = sentenceCount++;
+    if (executor == null) {
+      this.evaluate(realConfiguration, bestGuess, confusionMatrix, sentenceId);
+    } else {
+      pending.add(executor.submit(() -> {
+        this.evaluate(realConfiguration, bestGuess, shard.get(), sentenceId);
+        return null;
+      }));
+      this.awaitPending(false);
+    }
+  }
+
+  /**
+   * Check for failures among finished evaluations, waiting for the oldest one
+   * if too many are pending, or for all of them if waitForAll is true.
+   */
+  private void awaitPending(boolean waitForAll) throws TalismaneException, IOException {
+    while (!pending.isEmpty() && (waitForAll || pending.size() > maxPending || pending.peekFirst().isDone())) {
+      Future<?> future = pending.pollFirst();
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while evaluating");
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof TalismaneException)
+          throw (TalismaneException) cause;
+        if (cause instanceof IOException)
+          throw (IOException) cause;
+        if (cause instanceof RuntimeException)
+          throw (RuntimeException) cause;
+        throw new RuntimeException(cause);
+      }
+    }
+  }
+
+  /**
+   * Evaluate a single sentence, adding the results to the confusion matrix
+   * provided. The sentence number is only used in the trace.
+   */
+  void evaluate(ParseConfiguration realConfiguration, ParseConfiguration bestGuess, ConfusionMatrix confusionMatrix, long sentenceId)
+      throws TalismaneException {
+    long startTime = metrics == null ? 0 : System.nanoTime();
+    evaluate(realConfiguration, bestGuess, confusionMatrix, sentenceId, trace);
+    if (metrics != null)
+      metrics.sentence(sentenceId, realConfiguration.getPosTagSequence().size() - 1, System.nanoTime() - startTime);
+  }
+
+  /**
+   * Evaluate a single sentence, aligning the guessed tokens to the real ones
+   * by start index, and adding the results to the confusion matrix provided.
+   * Shared with the {@link MultiSystemEvaluator}, so that both tools score
+   * the same data in the same way.
+   *
+   * @param trace
+   *          where to record each evaluation, or null for none
+   */
+  static void evaluate(ParseConfiguration realConfiguration, ParseConfiguration bestGuess, ConfusionMatrix confusionMatrix, long sentenceId,
+      DecisionTrace trace) throws TalismaneException {
+    PosTagSequence posTagSequence = realConfiguration.getPosTagSequence();
+
+    // align guessed tokens to real tokens by start index, keeping empty and
+    // non-empty tokens apart, and retaining the first token found for each
+    Map<Integer, PosTaggedToken> guessedTokens = new HashMap<>();
+    Map<Integer, PosTaggedToken> guessedEmptyTokens = new HashMap<>();
+    for (PosTaggedToken guessedToken : bestGuess.getPosTagSequence()) {
+      if (guessedToken.getToken().isEmpty())
+        guessedEmptyTokens.putIfAbsent(guessedToken.getToken().getStartIndex(), guessedToken);
+      else
+        guessedTokens.putIfAbsent(guessedToken.getToken().getStartIndex(), guessedToken);
+    }
+
+    SentenceGraph realGraph = null;
+    SentenceGraph guessedGraph = null;
     int mismatchedTokens = 0;
     for (PosTaggedToken posTaggedToken : posTagSequence) {
       if (!posTaggedToken.getTag().equals(PosTag.ROOT_POS_TAG)) {
@@ -79,22 +210,17 @@ public class NonProjectiveEvaluator implements ParseEvaluationObserver {
         DependencyArc guessedArc = null;
         DependencyArc guessedProjArc = null;
 
-        boolean foundToken = false;
-        for (PosTaggedToken guessedToken : bestGuess.getPosTagSequence()) {
-          if (guessedToken.getToken().getStartIndex() == posTaggedToken.getToken().getStartIndex()) {
-            if (guessedToken.getToken().isEmpty() && !posTaggedToken.getToken().isEmpty())
-              continue;
-            if (!guessedToken.getToken().isEmpty() && posTaggedToken.getToken().isEmpty())
-              continue;
-            foundToken = true;
-            guessedArc = bestGuess.getGoverningDependency(guessedToken, false);
-            guessedProjArc = bestGuess.getGoverningDependency(guessedToken, true);
-            break;
-          }
+        Map<Integer, PosTaggedToken> alignment = posTaggedToken.getToken().isEmpty() ? guessedEmptyTokens : guessedTokens;
+        PosTaggedToken guessedToken = alignment.get(posTaggedToken.getToken().getStartIndex());
+        boolean foundToken = guessedToken != null;
+        if (foundToken) {
+          guessedArc = bestGuess.getGoverningDependency(guessedToken, false);
+          guessedProjArc = bestGuess.getGoverningDependency(guessedToken, true);
         }
 
         if (!foundToken) {
-          LOG.info("Mismatched token :" + posTaggedToken.getToken().getOriginalText() + ", index " + posTaggedToken.getToken().getIndex());
+          if (LOG.isDebugEnabled())
+            LOG.debug("Mismatched token :" + posTaggedToken.getToken().getOriginalText() + ", index " + posTaggedToken.getToken().getIndex());
           mismatchedTokens += 1;
         }
 
@@ -107,46 +233,22 @@ public class NonProjectiveEvaluator implements ParseEvaluationObserver {
           if (guessedLabel == null || guessedLabel.length() == 0)
             guessedLabel = "noLabel";
 
-          if (realLabel.equals("Dep-nproj")) {
-            PosTag headTag = realArc.getHead().getTag();
-            PosTag depTag = realArc.getDependent().getTag();
-            realLabel = "Dep" + tagMap.get(headTag.getCode()) + tagMap.get(depTag.getCode()) + "-nproj";
-          }
+          if (realLabel.equals("Dep-nproj"))
+            realLabel = getDepLabel(realArc.getHead().getTag().getCode(), realArc.getDependent().getTag().getCode());
 
-          if (guessedLabel.equals("Dep-nproj")) {
-            PosTag headTag = guessedArc.getHead().getTag();
-            PosTag depTag = guessedArc.getDependent().getTag();
-            guessedLabel = "Dep" + tagMap.get(headTag.getCode()) + tagMap.get(depTag.getCode()) + "-nproj";
-          }
+          if (guessedLabel.equals("Dep-nproj"))
+            guessedLabel = getDepLabel(guessedArc.getHead().getTag().getCode(), guessedArc.getDependent().getTag().getCode());
 
           if (realLabel.equals("DepNAdj-nproj") && realProjArc != null) {
-            PosTaggedToken verb = realProjArc.getHead();
-            while (!"V_main".equals(verb.getTag().getCode())) {
-              verb = realConfiguration.getHead(verb, true);
-              if (verb == null)
-                break;
-            }
-
-            if (verb == null) {
-              realLabel = "DepNAdj-noverb-nproj";
-            } else if (verb.getIndex() < realProjArc.getDependent().getIndex()) {
-              realLabel = "DepNAdj-post-nproj";
-            }
+            if (realGraph == null)
+              realGraph = SentenceGraph.of(realConfiguration, false);
+            realLabel = getNounAdjLabel(realLabel, realGraph, realProjArc.getHead().getIndex(), realProjArc.getDependent().getIndex());
           }
 
           if (guessedLabel.equals("DepNAdj-nproj") && guessedProjArc != null) {
-            PosTaggedToken verb = guessedProjArc.getHead();
-            while (!"V_main".equals(verb.getTag().getCode())) {
-              verb = bestGuess.getHead(verb, true);
-              if (verb == null)
-                break;
-            }
-
-            if (verb == null) {
-              guessedLabel = "DepNAdj-noverb-nproj";
-            } else if (verb.getIndex() < guessedProjArc.getDependent().getIndex()) {
-              guessedLabel = "DepNAdj-post-nproj";
-            }
+            if (guessedGraph == null)
+              guessedGraph = SentenceGraph.of(bestGuess, false);
+            guessedLabel = getNounAdjLabel(guessedLabel, guessedGraph, guessedProjArc.getHead().getIndex(), guessedProjArc.getDependent().getIndex());
           }
 
           // anything attached "by default" to the root, without a label,
@@ -156,24 +258,15 @@ public class NonProjectiveEvaluator implements ParseEvaluationObserver {
           if (guessedArc != null && guessedArc.getHead().getTag().equals(PosTag.ROOT_POS_TAG) && guessedLabel.equals("noLabel"))
             guessedLabel = "noHead";
 
-          LOG.info("Real " + realLabel + ". Non-proj: " + realArc + ". Proj: " + realProjArc);
-          LOG.info("Gues " + guessedLabel + ". Non-proj: " + guessedArc + ". Proj: " + guessedProjArc);
+          if (trace != null)
+            trace.evaluated(sentenceId, posTaggedToken.getIndex(), realArc == null ? -1 : realArc.getHead().getIndex(),
+                guessedArc == null ? -1 : guessedArc.getHead().getIndex(), realLabel, guessedLabel);
 
           if (realArc == null || guessedArc == null) {
-            fscoreCalculator.increment(realLabel, guessedLabel);
+            confusionMatrix.increment(realLabel, guessedLabel);
           } else {
             boolean sameHead = realArc.getHead().getToken().getStartIndex() == guessedArc.getHead().getToken().getStartIndex();
-
-            if (sameHead) {
-              fscoreCalculator.increment(realLabel, guessedLabel);
-            } else if (guessedLabel.equals("noHead")) {
-              fscoreCalculator.increment(realLabel, "noHead");
-            } else if (realArc.getLabel().equals(guessedArc.getLabel())) {
-              fscoreCalculator.increment(realLabel, "wrongHead");
-            } else {
-              fscoreCalculator.increment(realLabel, "wrongHeadWrongLabel");
-            }
-
+            increment(confusionMatrix, realLabel, guessedLabel, sameHead, realArc.getLabel().equals(guessedArc.getLabel()));
           } // have one of the arcs
         } // is root tag?
       } // next pos-tagged token
@@ -185,13 +278,66 @@ public class NonProjectiveEvaluator implements ParseEvaluationObserver {
     }
   }
 
+  /**
+   * The evaluation label for a Dep-nproj arc, split by head and dependent tag.
+   */
+  static String getDepLabel(String headTag, String depTag) {
+    return "Dep" + tagMap.get(headTag) + tagMap.get(depTag) + "-nproj";
+  }
+
+  /**
+   * The evaluation label for a DepNAdj-nproj arc, indicating whether the
+   * adjective has no verbal governor, or follows it.
+   */
+  static String getNounAdjLabel(String label, SentenceGraph graph, int projHead, int dep) {
+    int verb = graph.getVerbalGovernor(projHead);
+    if (verb < 0)
+      return "DepNAdj-noverb-nproj";
+    if (verb < dep)
+      return "DepNAdj-post-nproj";
+    return label;
+  }
+
+  /**
+   * Count an evaluation where both the real and guessed arc exist.
+   */
+  static void increment(ConfusionMatrix confusionMatrix, String realLabel, String guessedLabel, boolean sameHead, boolean sameArcLabel) {
+    if (sameHead) {
+      confusionMatrix.increment(realLabel, guessedLabel);
+    } else if (guessedLabel.equals("noHead")) {
+      confusionMatrix.increment(realLabel, "noHead");
+    } else if (sameArcLabel) {
+      confusionMatrix.increment(realLabel, "wrongHead");
+    } else {
+      confusionMatrix.increment(realLabel, "wrongHeadWrongLabel");
+    }
+  }
+
   @Override
   public void onEvaluationComplete() throws IOException {
+    if (executor != null) {
+      try {
+        this.awaitPending(true);
+      } catch (TalismaneException e) {
+        throw new IOException(e);
+      } finally {
+        executor.shutdownNow();
+      }
+      for (ConfusionMatrix matrix : shards)
+        confusionMatrix.merge(matrix);
+    }
+    confusionMatrix.save(matrixFile);
+
+    FScoreCalculator<String> fscoreCalculator = confusionMatrix.getFScoreCalculator();
     double fscore = fscoreCalculator.getTotalFScore();
     LOG.debug("F-score: " + fscore);
     fscoreCalculator.writeScoresToCSV(writer);
     writer.flush();
     writer.close();
+    if (trace != null)
+      trace.close();
+    if (metrics != null)
+      metrics.close();
   }
 
 }
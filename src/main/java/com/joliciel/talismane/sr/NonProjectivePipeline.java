@@ -0,0 +1,223 @@
+package com.joliciel.talismane.sr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.joliciel.talismane.TalismaneException;
+import com.joliciel.talismane.TalismaneSession;
+import com.joliciel.talismane.parser.ParseConfiguration;
+import com.joliciel.talismane.parser.Parser;
+import com.joliciel.talismane.parser.ParserAnnotatedCorpusReader;
+import com.joliciel.talismane.parser.Parsers;
+import com.joliciel.talismane.parser.output.ParseConfigurationProcessor;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+/**
+ * Runs the full non-projective experiment in a single process: each sentence
+ * of a non-projective gold corpus is projectified, parsed, de-projectified and
+ * evaluated in memory, replacing the projectify, analyse, de-projectify and
+ * evaluate runs described in the README, and their intermediate files.<br/>
+ * <br/>
+ * Usage:
+ *
+ * <pre>
+ * java -Dconfig.file=conf/talismane-sr-pipeline.conf -Dparser-model=models/parser_sr.zip -cp talismane_sr-0.0.1-SNAPSHOT.jar com.joliciel.talismane.sr.NonProjectivePipeline --inFile=corpus/test.conll --outDir=corpus-eval-results/
+ * </pre>
+ *
+ * Other options are sessionId (default sr), encoding (default UTF-8), and
+ * teeDir: if given, the intermediate files of the file-based workflow are
+ * also written to this directory for debugging, as
+ * <code>[name]-proj.conll</code>, <code>[name]-proj-eval.conll</code> and
+ * <code>[name]-deproj-eval.conll</code>, where name is the input file name
+ * without its extension.<br/>
+ * <br/>
+ * Each set of corpus rules is applied once, at the stage where the file-based
+ * workflow applies it when reading an intermediate file: the gold corpus is
+ * read without corpus rules, as by the projectify run, the session's
+ * <code>parser.input.corpus-rules</code> are applied to the gold sentence once
+ * projectified, as when evaluating, the pipeline's
+ * <code>deprojectify-corpus-rules</code> to the guess before de-projectifying
+ * it, and <code>parser.evaluate.corpus-rules</code> to the de-projectified
+ * guess. The projectifier and the writer used for the intermediate files are
+ * set in <code>talismane.serbian.pipeline</code>, and are constructed like the
+ * processors in {@link ParallelDeprojectifier}.
+ *
+ * @author Assaf Urieli
+ *
+ */
+public class NonProjectivePipeline {
+  private static final Logger LOG = LoggerFactory.getLogger(NonProjectivePipeline.class);
+
+  private final TalismaneSession session;
+  private final ParseConfigurationProcessor projectifier;
+  private final Parser parser;
+  private final Deprojectifier deprojectifier;
+  private final NonProjectiveEvaluator evaluator;
+  private final List<ConllCorpusRule> goldRules;
+  private final List<ConllCorpusRule> deprojectifyRules;
+  private final List<ConllCorpusRule> evalRules;
+  private final List<ParseConfigurationProcessor> projTee = new ArrayList<>();
+  private final List<ParseConfigurationProcessor> evalTee = new ArrayList<>();
+  private final List<ParseConfigurationProcessor> deprojTee = new ArrayList<>();
+  private final List<Writer> teeWriters = new ArrayList<>();
+
+  private long projectifyMillis;
+  private long parseMillis;
+  private long deprojectifyMillis;
+  private long evaluateMillis;
+
+  /**
+   * @param teeDir
+   *          where to write the intermediate files, or null for none
+   * @param name
+   *          the prefix of the intermediate files
+   */
+  public NonProjectivePipeline(TalismaneSession session, File outDir, File teeDir, String name, Charset charset)
+      throws IOException, ReflectiveOperationException, TalismaneException {
+    this.session = session;
+    Config config = session.getConfig();
+    Config pipelineConfig = config.getConfig("talismane.serbian.pipeline");
+    String parserPath = "talismane.core." + session.getSessionId() + ".parser";
+
+    this.projectifier = ParallelDeprojectifier.newProcessor(pipelineConfig.getString("projectifier"), null, session);
+    this.parser = Parsers.getParser(session);
+    this.deprojectifier = new Deprojectifier(session);
+    this.evaluator = new NonProjectiveEvaluator(outDir, session);
+
+    ConllLayout layout = new ConllLayout(Collections.<String, String> emptyMap());
+    this.goldRules = ConllCorpusRule.getRules(config, parserPath + ".input.corpus-rules", layout);
+    this.deprojectifyRules = ConllCorpusRule.getRules(config, "talismane.serbian.pipeline.deprojectify-corpus-rules", layout);
+    this.evalRules = ConllCorpusRule.getRules(config, parserPath + ".evaluate.corpus-rules", layout);
+
+    if (teeDir != null) {
+      teeDir.mkdirs();
+      String writerClass = pipelineConfig.getString("tee-writer");
+      projTee.add(ParallelDeprojectifier.newProcessor(writerClass, this.newTeeWriter(new File(teeDir, name + "-proj.conll"), charset), session));
+      evalTee.add(ParallelDeprojectifier.newProcessor(writerClass, this.newTeeWriter(new File(teeDir, name + "-proj-eval.conll"), charset), session));
+      deprojTee.add(ParallelDeprojectifier.newProcessor(writerClass, this.newTeeWriter(new File(teeDir, name + "-deproj-eval.conll"), charset), session));
+    }
+  }
+
+  private Writer newTeeWriter(File file, Charset charset) throws IOException {
+    Writer writer = Files.newBufferedWriter(file.toPath(), charset);
+    teeWriters.add(writer);
+    return writer;
+  }
+
+  public static void main(String[] args) throws IOException, ReflectiveOperationException, TalismaneException {
+    Map<String, String> options = ConllLayout.parseArgs(args);
+    if (!options.containsKey("inFile") || !options.containsKey("outDir"))
+      throw new IllegalArgumentException("Usage: NonProjectivePipeline --inFile=corpus/test.conll --outDir=corpus-eval-results/ [--teeDir=corpus-debug/]");
+
+    Charset charset = options.containsKey("encoding") ? Charset.forName(options.get("encoding")) : StandardCharsets.UTF_8;
+    String sessionId = options.containsKey("sessionId") ? options.get("sessionId") : "sr";
+    File inFile = new File(options.get("inFile"));
+    String name = inFile.getName().indexOf('.') > 0 ? inFile.getName().substring(0, inFile.getName().lastIndexOf('.')) : inFile.getName();
+    File outDir = new File(options.get("outDir"));
+    outDir.mkdirs();
+    File teeDir = options.containsKey("teeDir") ? new File(options.get("teeDir")) : null;
+
+    TalismaneSession session = new TalismaneSession(ConfigFactory.load(), sessionId);
+    NonProjectivePipeline pipeline = new NonProjectivePipeline(session, outDir, teeDir, name, charset);
+    try (Reader reader = Files.newBufferedReader(inFile.toPath(), charset)) {
+      pipeline.process(reader);
+    } finally {
+      pipeline.close();
+    }
+  }
+
+  /**
+   * Run every sentence in the gold corpus through the pipeline, and write the
+   * evaluation results.
+   *
+   * @return the number of sentences processed
+   */
+  public int process(Reader reader) throws IOException, ReflectiveOperationException, TalismaneException {
+    // the input rules apply to the projectified corpus, not the original one
+    Config inputConfig = session.getConfig().getConfig("talismane.core." + session.getSessionId() + ".parser.input")
+        .withValue("corpus-rules", ConfigValueFactory.fromIterable(Collections.emptyList()));
+    ParserAnnotatedCorpusReader corpusReader = ParserAnnotatedCorpusReader.getCorpusReader(reader, inputConfig, session);
+
+    int sentenceCount = 0;
+    long startTime = System.currentTimeMillis();
+    while (corpusReader.hasNextConfiguration()) {
+      ParseConfiguration realConfiguration = corpusReader.nextConfiguration();
+      this.process(realConfiguration);
+      sentenceCount++;
+      if (sentenceCount % 1000 == 0)
+        LOG.debug("Processed " + sentenceCount + " sentences");
+    }
+
+    this.complete();
+    LOG.info("Processed " + sentenceCount + " sentences in " + (System.currentTimeMillis() - startTime) + " ms: projectify " + projectifyMillis
+        + " ms, parse " + parseMillis + " ms, de-projectify " + deprojectifyMillis + " ms, evaluate " + evaluateMillis + " ms");
+    return sentenceCount;
+  }
+
+  /**
+   * Projectify, parse, de-projectify and evaluate a single gold sentence.
+   */
+  void process(ParseConfiguration realConfiguration) throws IOException, TalismaneException {
+    long startTime = System.currentTimeMillis();
+    projectifier.onNextParseConfiguration(realConfiguration);
+    ConllCorpusRule.apply(goldRules, realConfiguration);
+    for (ParseConfigurationProcessor processor : projTee)
+      processor.onNextParseConfiguration(realConfiguration);
+
+    long parseStart = System.currentTimeMillis();
+    projectifyMillis += parseStart - startTime;
+    ParseConfiguration guessedConfiguration = parser.parseSentence(realConfiguration.getPosTagSequence());
+    for (ParseConfigurationProcessor processor : evalTee)
+      processor.onNextParseConfiguration(guessedConfiguration);
+
+    long deprojectifyStart = System.currentTimeMillis();
+    parseMillis += deprojectifyStart - parseStart;
+    ConllCorpusRule.apply(deprojectifyRules, guessedConfiguration);
+    deprojectifier.onNextParseConfiguration(guessedConfiguration);
+    ConllCorpusRule.apply(evalRules, guessedConfiguration);
+    for (ParseConfigurationProcessor processor : deprojTee)
+      processor.onNextParseConfiguration(guessedConfiguration);
+
+    long evaluateStart = System.currentTimeMillis();
+    deprojectifyMillis += evaluateStart - deprojectifyStart;
+    evaluator.onParseStart(realConfiguration, Collections.singletonList(realConfiguration.getPosTagSequence()));
+    evaluator.onParseEnd(realConfiguration, Collections.singletonList(guessedConfiguration));
+    evaluateMillis += System.currentTimeMillis() - evaluateStart;
+  }
+
+  private void complete() throws IOException {
+    projectifier.onCompleteParse();
+    deprojectifier.onCompleteParse();
+    for (List<ParseConfigurationProcessor> tee : Arrays.asList(projTee, evalTee, deprojTee)) {
+      for (ParseConfigurationProcessor processor : tee)
+        processor.onCompleteParse();
+    }
+    evaluator.onEvaluationComplete();
+  }
+
+  public void close() throws IOException {
+    projectifier.close();
+    deprojectifier.close();
+    for (List<ParseConfigurationProcessor> tee : Arrays.asList(projTee, evalTee, deprojTee)) {
+      for (ParseConfigurationProcessor processor : tee)
+        processor.close();
+    }
+    for (Writer writer : teeWriters)
+      writer.close();
+  }
+}
@@ -0,0 +1,403 @@
+package com.joliciel.talismane.sr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Profiles the non-projective arcs of one or more CoNLL corpora, typically the
+ * projectified gold corpora, with both the non-projective and the projective
+ * governors and labels, to help choose a non-projective label set and tune
+ * the {@link Deprojectifier}.<br/>
+ * <br/>
+ * Usage:
+ *
+ * <pre>
+ * java -cp talismane_sr-0.0.1-SNAPSHOT.jar com.joliciel.talismane.sr.NonProjectivityProfiler --inFile=corpus-proj/train-proj.conll,corpus-proj/test-proj.conll --outDir=profile/
+ * </pre>
+ *
+ * Other options are encoding (default UTF-8), threads (default 0, for the
+ * number of available processors), and the column options of
+ * {@link ConllLayout}. The following files are written to outDir:
+ * <ul>
+ * <li><code>nproj-summary.csv</code>: sentence, token and arc counts</li>
+ * <li><code>nproj-labels.csv</code>: for each non-projective label, the number
+ * of arcs, of arcs crossing another arc, and of arcs lifted by
+ * projectification (whose projective governor differs)</li>
+ * <li><code>nproj-tag-pairs.csv</code>: the same counts for each governor and
+ * dependent tag pair, for crossing or lifted arcs only</li>
+ * <li><code>nproj-distances.csv</code>: for each signed distance from the
+ * dependent to its non-projective governor, the number of lifted arcs, and the
+ * number of adjectives preceding their projective verbal governor, as
+ * targeted by the de-projectifier</li>
+ * </ul>
+ * Each file is memory-mapped and split into chunks of about
+ * {@value #CHUNK_SIZE} bytes at sentence boundaries, which are profiled in
+ * parallel on a fork-join pool and their histograms merged.
+ *
+ * @author Assaf Urieli
+ *
+ */
+public class NonProjectivityProfiler {
+  private static final Logger LOG = LoggerFactory.getLogger(NonProjectivityProfiler.class);
+
+  static final int CHUNK_SIZE = 4 * 1024 * 1024;
+  private static final int SCAN_SIZE = 64 * 1024;
+
+  private final ConllLayout layout;
+  private final Charset charset;
+  private final ForkJoinPool pool;
+
+  /**
+   * Counts for a set of sentences, merged when chunks are joined.
+   */
+  static final class Profile {
+    long sentences;
+    long nonProjectiveSentences;
+    long tokens;
+    long arcs;
+    long crossingArcs;
+    long liftedArcs;
+    long adjectives;
+    long adjectivesBeforeVerb;
+
+    /**
+     * For each label: arcs, crossing arcs, lifted arcs.
+     */
+    final Map<String, long[]> labels = new TreeMap<>();
+
+    /**
+     * For each governor and dependent tag, separated by a comma: crossing
+     * arcs, lifted arcs.
+     */
+    final Map<String, long[]> tagPairs = new TreeMap<>();
+
+    /**
+     * For each signed distance: lifted arcs, adjectives preceding their verb.
+     */
+    final Map<Integer, long[]> distances = new TreeMap<>();
+
+    void add(ConllSentence sentence, ConllLayout layout) {
+      int size = sentence.size();
+      int[] heads = new int[size];
+      boolean[] crossing = new boolean[size];
+      for (int i = 1; i < size; i++) {
+        heads[i] = sentence.hasToken(i) ? sentence.getNonProjGovernor(i) : -1;
+        if (heads[i] >= size || (heads[i] > 0 && !sentence.hasToken(heads[i])))
+          throw new IllegalArgumentException("Governor " + heads[i] + " of token " + i + " not found in sentence");
+      }
+
+      boolean nonProjective = false;
+      for (int i = 1; i < size; i++) {
+        if (heads[i] < 0)
+          continue;
+        int start = Math.min(i, heads[i]);
+        int end = Math.max(i, heads[i]);
+        for (int j = i + 1; j < size; j++) {
+          if (heads[j] < 0)
+            continue;
+          int otherStart = Math.min(j, heads[j]);
+          int otherEnd = Math.max(j, heads[j]);
+          if ((start < otherStart && otherStart < end && end < otherEnd) || (otherStart < start && start < otherEnd && otherEnd < end)) {
+            crossing[i] = true;
+            crossing[j] = true;
+            nonProjective = true;
+          }
+        }
+      }
+
+      SentenceGraph graph = sentence.toGraph(false, null);
+      sentences++;
+      if (nonProjective)
+        nonProjectiveSentences++;
+      for (int i = 1; i < size; i++) {
+        if (!sentence.hasToken(i))
+          continue;
+        tokens++;
+        if (heads[i] < 0)
+          continue;
+        arcs++;
+        int projHead = graph.getHead(i);
+        boolean lifted = projHead >= 0 && projHead != heads[i];
+        if (crossing[i])
+          crossingArcs++;
+        if (lifted)
+          liftedArcs++;
+
+        long[] labelCounts = labels.computeIfAbsent(sentence.getNonProjLabel(i), k -> new long[3]);
+        labelCounts[0]++;
+        if (crossing[i])
+          labelCounts[1]++;
+        if (lifted)
+          labelCounts[2]++;
+
+        if (crossing[i] || lifted) {
+          String headTag = heads[i] == 0 ? "ROOT" : sentence.get(heads[i], layout.posTagColumn);
+          long[] pairCounts = tagPairs.computeIfAbsent(headTag + "," + sentence.get(i, layout.posTagColumn), k -> new long[2]);
+          if (crossing[i])
+            pairCounts[0]++;
+          if (lifted)
+            pairCounts[1]++;
+        }
+
+        if (lifted)
+          distances.computeIfAbsent(heads[i] - i, k -> new long[2])[0]++;
+
+        if (graph.getTag(i) == SentenceGraph.TAG_A) {
+          adjectives++;
+          int verb = projHead >= 0 ? graph.getVerbalGovernor(projHead) : -1;
+          if (verb > i) {
+            adjectivesBeforeVerb++;
+            distances.computeIfAbsent(heads[i] - i, k -> new long[2])[1]++;
+          }
+        }
+      }
+    }
+
+    void merge(Profile other) {
+      sentences += other.sentences;
+      nonProjectiveSentences += other.nonProjectiveSentences;
+      tokens += other.tokens;
+      arcs += other.arcs;
+      crossingArcs += other.crossingArcs;
+      liftedArcs += other.liftedArcs;
+      adjectives += other.adjectives;
+      adjectivesBeforeVerb += other.adjectivesBeforeVerb;
+      mergeCounts(labels, other.labels);
+      mergeCounts(tagPairs, other.tagPairs);
+      mergeCounts(distances, other.distances);
+    }
+
+    private static <K> void mergeCounts(Map<K, long[]> counts, Map<K, long[]> other) {
+      for (Map.Entry<K, long[]> entry : other.entrySet()) {
+        long[] existing = counts.get(entry.getKey());
+        if (existing == null) {
+          counts.put(entry.getKey(), entry.getValue());
+        } else {
+          for (int i = 0; i < existing.length; i++)
+            existing[i] += entry.getValue()[i];
+        }
+      }
+    }
+  }
+
+  /**
+   * @param threads
+   *          the number of profiling threads, 0 for the number of available
+   *          processors
+   */
+  public NonProjectivityProfiler(Map<String, String> options, Charset charset, int threads) {
+    this.layout = new ConllLayout(options);
+    this.charset = charset;
+    this.pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+  }
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> options = ConllLayout.parseArgs(args);
+    if (!options.containsKey("inFile") || !options.containsKey("outDir"))
+      throw new IllegalArgumentException("Usage: NonProjectivityProfiler --inFile=corpus1.conll[,corpus2.conll] --outDir=profile/ [--threads=0]");
+    Charset charset = options.containsKey("encoding") ? Charset.forName(options.get("encoding")) : StandardCharsets.UTF_8;
+    int threads = options.containsKey("threads") ? Integer.parseInt(options.get("threads")) : 0;
+    List<File> files = new ArrayList<>();
+    for (String path : options.get("inFile").split(","))
+      files.add(new File(path));
+    File outDir = new File(options.get("outDir"));
+    outDir.mkdirs();
+
+    long startTime = System.currentTimeMillis();
+    NonProjectivityProfiler profiler = new NonProjectivityProfiler(options, charset, threads);
+    Profile profile;
+    try {
+      profile = profiler.profile(files);
+    } finally {
+      profiler.close();
+    }
+    LOG.info("Profiled " + profile.sentences + " sentences, " + profile.tokens + " tokens in " + (System.currentTimeMillis() - startTime) + " ms: "
+        + profile.crossingArcs + " crossing arcs, " + profile.liftedArcs + " lifted arcs");
+    write(profile, outDir);
+  }
+
+  /**
+   * Profile all the sentences in the files provided.
+   */
+  public Profile profile(List<File> files) throws IOException {
+    Profile profile = new Profile();
+    for (File file : files) {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        List<long[]> chunks = getChunks(channel, CHUNK_SIZE);
+        LOG.debug("Profiling " + file.getPath() + " in " + chunks.size() + " chunks");
+        try {
+          profile.merge(pool.invoke(new ProfileTask(channel, chunks, 0, chunks.size())));
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+      }
+    }
+    return profile;
+  }
+
+  /**
+   * Split a file into consecutive [start, end) byte ranges of at least
+   * chunkSize bytes, each ending just after a blank line or at the end of the
+   * file, so that no sentence is split.
+   */
+  static List<long[]> getChunks(FileChannel channel, int chunkSize) throws IOException {
+    List<long[]> chunks = new ArrayList<>();
+    long size = channel.size();
+    long start = 0;
+    while (start < size) {
+      long end = start + chunkSize >= size ? size : nextSentence(channel, start + chunkSize, size);
+      chunks.add(new long[] { start, end });
+      start = end;
+    }
+    return chunks;
+  }
+
+  /**
+   * The position following the first blank line at or after position, or the
+   * file size if there is none.
+   */
+  private static long nextSentence(FileChannel channel, long position, long size) throws IOException {
+    // whether the previous line so far contained only whitespace
+    boolean blank = false;
+    boolean lineStart = false;
+    for (long windowStart = position; windowStart < size; windowStart += SCAN_SIZE) {
+      MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(SCAN_SIZE, size - windowStart));
+      for (int i = 0; i < window.limit(); i++) {
+        byte b = window.get(i);
+        if (b == '\n') {
+          if (lineStart && blank)
+            return windowStart + i + 1;
+          lineStart = true;
+          blank = true;
+        } else if (b != '\r' && b != ' ' && b != '\t') {
+          blank = false;
+        }
+      }
+    }
+    return size;
+  }
+
+  private final class ProfileTask extends RecursiveTask<Profile> {
+    private static final long serialVersionUID = 1L;
+
+    private final FileChannel channel;
+    private final List<long[]> chunks;
+    private final int from;
+    private final int to;
+
+    ProfileTask(FileChannel channel, List<long[]> chunks, int from, int to) {
+      this.channel = channel;
+      this.chunks = chunks;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected Profile compute() {
+      if (to - from == 1) {
+        try {
+          return profileChunk(channel, chunks.get(from)[0], chunks.get(from)[1]);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      int middle = (from + to) / 2;
+      ProfileTask left = new ProfileTask(channel, chunks, from, middle);
+      left.fork();
+      Profile profile = new ProfileTask(channel, chunks, middle, to).compute();
+      profile.merge(left.join());
+      return profile;
+    }
+  }
+
+  Profile profileChunk(FileChannel channel, long start, long end) throws IOException {
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    // decoding from an array is much faster than from a direct buffer
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    String text = new String(bytes, charset);
+
+    Profile profile = new Profile();
+    List<String> lines = new ArrayList<>();
+    int lineStart = 0;
+    while (lineStart <= text.length()) {
+      int lineEnd = text.indexOf('\n', lineStart);
+      if (lineEnd < 0)
+        lineEnd = text.length();
+      String line = text.substring(lineStart, lineEnd > lineStart && text.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd);
+      if (line.trim().length() == 0) {
+        if (lines.size() > 0) {
+          profile.add(new ConllSentence(lines, layout), layout);
+          lines = new ArrayList<>();
+        }
+      } else {
+        lines.add(line);
+      }
+      lineStart = lineEnd + 1;
+    }
+    return profile;
+  }
+
+  public void close() {
+    pool.shutdown();
+  }
+
+  static void write(Profile profile, File outDir) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(new File(outDir, "nproj-summary.csv").toPath(), StandardCharsets.UTF_8)) {
+      writer.write("measure,count\n");
+      writer.write("sentences," + profile.sentences + "\n");
+      writer.write("non-projective sentences," + profile.nonProjectiveSentences + "\n");
+      writer.write("tokens," + profile.tokens + "\n");
+      writer.write("arcs," + profile.arcs + "\n");
+      writer.write("crossing arcs," + profile.crossingArcs + "\n");
+      writer.write("lifted arcs," + profile.liftedArcs + "\n");
+      writer.write("adjectives," + profile.adjectives + "\n");
+      writer.write("adjectives before verb," + profile.adjectivesBeforeVerb + "\n");
+    }
+    try (Writer writer = Files.newBufferedWriter(new File(outDir, "nproj-labels.csv").toPath(), StandardCharsets.UTF_8)) {
+      writer.write("label,arcs,crossing,lifted,lifted %\n");
+      for (Map.Entry<String, long[]> entry : profile.labels.entrySet()) {
+        long[] counts = entry.getValue();
+        writer.write(String.format(Locale.US, "%s,%d,%d,%d,%.2f\n", csv(entry.getKey()), counts[0], counts[1], counts[2], 100.0 * counts[2] / counts[0]));
+      }
+    }
+    try (Writer writer = Files.newBufferedWriter(new File(outDir, "nproj-tag-pairs.csv").toPath(), StandardCharsets.UTF_8)) {
+      writer.write("governor,dependent,crossing,lifted\n");
+      for (Map.Entry<String, long[]> entry : profile.tagPairs.entrySet()) {
+        long[] counts = entry.getValue();
+        writer.write(entry.getKey() + "," + counts[0] + "," + counts[1] + "\n");
+      }
+    }
+    try (Writer writer = Files.newBufferedWriter(new File(outDir, "nproj-distances.csv").toPath(), StandardCharsets.UTF_8)) {
+      writer.write("distance,lifted,adjectives before verb\n");
+      for (Map.Entry<Integer, long[]> entry : profile.distances.entrySet()) {
+        long[] counts = entry.getValue();
+        writer.write(entry.getKey() + "," + counts[0] + "," + counts[1] + "\n");
+      }
+    }
+  }
+
+  private static String csv(String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0)
+      return value;
+    return "\"" + value.replace("\"", "\"\"") + "\"";
+  }
+}
@@ -0,0 +1,146 @@
+package com.joliciel.talismane.sr;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.joliciel.talismane.TalismaneException;
+import com.joliciel.talismane.TalismaneSession;
+import com.joliciel.talismane.parser.ParseConfiguration;
+import com.joliciel.talismane.parser.output.ParseConfigurationProcessor;
+import com.typesafe.config.Config;
+
+/**
+ * Runs the {@link Deprojectifier} on a thread pool, and passes the
+ * de-projectified parse configurations to the downstream processors (typically
+ * a parse writer) in their original order.<br/>
+ * <br/>
+ * Sentences are submitted as they are read, and forwarded downstream as soon
+ * as all preceding sentences are done. At most
+ * <code>talismane.serbian.deprojectifier.parallel.max-pending</code> sentences
+ * are held in memory at any one time: once the limit is reached, reading waits
+ * for the oldest sentence to be forwarded. The output is thus identical to
+ * that of a sequential run, with memory use independent of corpus size.<br/>
+ * <br/>
+ * The downstream processors are listed in
+ * <code>talismane.serbian.deprojectifier.parallel.downstream</code>, and are
+ * constructed with either a (Writer, TalismaneSession) or a
+ * (TalismaneSession) constructor.
+ *
+ * @author Assaf Urieli
+ *
+ */
+public class ParallelDeprojectifier implements ParseConfigurationProcessor {
+  private static final Logger LOG = LoggerFactory.getLogger(ParallelDeprojectifier.class);
+
+  private final Deprojectifier deprojectifier;
+  private final List<ParseConfigurationProcessor> downstream = new ArrayList<>();
+  private final ExecutorService executor;
+  private final int maxPending;
+  private final Deque<Future<ParseConfiguration>> pending = new ArrayDeque<>();
+  private long sentenceCount = 0;
+
+  public ParallelDeprojectifier(Writer writer, TalismaneSession session) throws ReflectiveOperationException, IOException {
+    this.deprojectifier = new Deprojectifier(session);
+
+    Config config = session.getConfig().getConfig("talismane.serbian.deprojectifier.parallel");
+    int threads = config.getInt("threads");
+    if (threads <= 0)
+      threads = Runtime.getRuntime().availableProcessors();
+    this.maxPending = Math.max(1, config.getInt("max-pending"));
+
+    for (String className : config.getStringList("downstream")) {
+      downstream.add(newProcessor(className, writer, session));
+    }
+
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread thread = new Thread(r, "deprojectifier-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    LOG.debug("Deprojectifying on " + threads + " threads, with at most " + maxPending + " pending sentences");
+  }
+
+  static ParseConfigurationProcessor newProcessor(String className, Writer writer, TalismaneSession session) throws ReflectiveOperationException {
+    Class<? extends ParseConfigurationProcessor> clazz = Class.forName(className).asSubclass(ParseConfigurationProcessor.class);
+    try {
+      Constructor<? extends ParseConfigurationProcessor> cons = clazz.getConstructor(Writer.class, TalismaneSession.class);
+      return cons.newInstance(writer, session);
+    } catch (NoSuchMethodException e) {
+      Constructor<? extends ParseConfigurationProcessor> cons = clazz.getConstructor(TalismaneSession.class);
+      return cons.newInstance(session);
+    }
+  }
+
+  @Override
+  public void onNextParseConfiguration(ParseConfiguration parseConfiguration) throws TalismaneException, IOException {
+    long sentenceId = sentenceCount++;
+    pending.add(executor.submit(() -> {
+      deprojectifier.deprojectify(parseConfiguration, sentenceId);
+      return parseConfiguration;
+    }));
+    this.forward(false);
+  }
+
+  /**
+   * Forward finished sentences downstream in order, waiting for the oldest
+   * sentence if too many are pending, or if waitForAll is true.
+   */
+  private void forward(boolean waitForAll) throws TalismaneException, IOException {
+    while (!pending.isEmpty() && (waitForAll || pending.size() > maxPending || pending.peekFirst().isDone())) {
+      Future<ParseConfiguration> future = pending.pollFirst();
+      ParseConfiguration parseConfiguration;
+      try {
+        parseConfiguration = future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while de-projectifying");
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof TalismaneException)
+          throw (TalismaneException) cause;
+        if (cause instanceof IOException)
+          throw (IOException) cause;
+        if (cause instanceof RuntimeException)
+          throw (RuntimeException) cause;
+        throw new RuntimeException(cause);
+      }
+      for (ParseConfigurationProcessor processor : downstream)
+        processor.onNextParseConfiguration(parseConfiguration);
+    }
+  }
+
+  @Override
+  public void onCompleteParse() throws IOException {
+    try {
+      this.forward(true);
+    } catch (TalismaneException e) {
+      throw new IOException(e);
+    }
+    deprojectifier.onCompleteParse();
+    for (ParseConfigurationProcessor processor : downstream)
+      processor.onCompleteParse();
+  }
+
+  @Override
+  public void close() throws IOException {
+    executor.shutdownNow();
+    deprojectifier.close();
+    for (ParseConfigurationProcessor processor : downstream)
+      processor.close();
+  }
+}
@@ -0,0 +1,483 @@
+package com.joliciel.talismane.sr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.joliciel.talismane.TalismaneException;
+import com.joliciel.talismane.TalismaneSession;
+import com.joliciel.talismane.parser.ParseConfiguration;
+import com.joliciel.talismane.parser.Parser;
+import com.joliciel.talismane.parser.Parsers;
+import com.joliciel.talismane.posTagger.PosTagAnnotatedCorpusReader;
+import com.joliciel.talismane.posTagger.PosTagSequence;
+import com.joliciel.talismane.posTagger.PosTaggedToken;
+import com.joliciel.talismane.posTagger.PosTagger;
+import com.joliciel.talismane.posTagger.PosTaggers;
+import com.joliciel.talismane.rawText.Sentence;
+import com.joliciel.talismane.tokeniser.TokenSequence;
+import com.joliciel.talismane.tokeniser.Tokeniser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * A long-lived local HTTP server, which loads the Serbian session and its
+ * models once, and then tokenises, pos-tags, parses and de-projectifies the
+ * sentences it receives, avoiding Talismane's start-up cost on every
+ * call.<br/>
+ * <br/>
+ * Usage:
+ *
+ * <pre>
+ * java -Dconfig.file=conf/talismane-sr-server.conf -Dparser-model=models/parser_sr.zip -Dpos-tagger-model=models/posTagger_sr.zip -cp talismane_sr-0.0.1-SNAPSHOT.jar com.joliciel.talismane.sr.ParseServer [--sessionId=sr]
+ * </pre>
+ *
+ * Endpoints:
+ * <ul>
+ * <li><code>POST /parse?input=text|conll&amp;output=conll|json</code>: the body
+ * is either raw text with one sentence per line (the default), or a pos-tagged
+ * CoNLL corpus read as configured in the session's
+ * <code>pos-tagger.input</code>. The response contains the parse of each
+ * sentence, as CoNLL (the default) with the projective and non-projective
+ * governors and labels in their usual columns, or as JSON.</li>
+ * <li><code>GET /health</code>: whether the server is up.</li>
+ * <li><code>GET /metrics</code>: request and sentence counts, and the
+ * time spent in each stage, as JSON.</li>
+ * </ul>
+ * Requests are handled on a pool of <code>request-threads</code>, and their
+ * sentences queued for the <code>workers</code>, each of which holds its own
+ * tokeniser, pos-tagger and parser, and shares a single {@link Deprojectifier}.
+ * Each worker takes the next queued sentence, whatever request it belongs to,
+ * and analyses it through all stages, Talismane analysing one sentence at a
+ * time. Once <code>max-pending</code> sentences are queued or being analysed,
+ * further requests are refused with a 503 status, rather than accumulated in
+ * memory. Request bodies larger than <code>max-body-size</code> are refused
+ * with a 413 status: if the declared length is already too large, the body is
+ * not read at all, and the connection is closed after the response rather
+ * than kept alive. All settings are in
+ * <code>talismane.serbian.server</code>.<br/>
+ * <br/>
+ * If <code>talismane.serbian.cache</code> is enabled, sentences analysed
+ * before are answered from the {@link SentenceCache} without being queued.
+ *
+ * @author Assaf Urieli
+ *
+ */
+public class ParseServer implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(ParseServer.class);
+
+  private final TalismaneSession session;
+  private final Deprojectifier deprojectifier;
+  private final SentenceCache cache;
+  private final HttpServer server;
+  private final ExecutorService requestExecutor;
+  private final List<Thread> workers = new ArrayList<>();
+  private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+  private final Semaphore pendingPermits;
+  private final int maxPending;
+  private final long requestTimeoutMillis;
+  private final long maxBodySize;
+  private final long startTime = System.currentTimeMillis();
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder rejectedRequests = new LongAdder();
+  private final LongAdder failedRequests = new LongAdder();
+  private final LongAdder sentences = new LongAdder();
+  private final LongAdder tagNanos = new LongAdder();
+  private final LongAdder parseNanos = new LongAdder();
+  private final LongAdder deprojectifyNanos = new LongAdder();
+
+  /**
+   * A sentence awaiting analysis, given either as raw text or already
+   * pos-tagged.
+   */
+  private static final class Job {
+    final String text;
+    PosTagSequence posTagSequence;
+    final String cacheKey;
+    final CompletableFuture<AnalysedSentence> result = new CompletableFuture<>();
+
+    Job(String text, PosTagSequence posTagSequence, String cacheKey) {
+      this.text = text;
+      this.posTagSequence = posTagSequence;
+      this.cacheKey = cacheKey;
+    }
+  }
+
+  public ParseServer(TalismaneSession session) throws IOException, ReflectiveOperationException, TalismaneException {
+    this.session = session;
+    Config config = session.getConfig().getConfig("talismane.serbian.server");
+    this.maxPending = Math.max(1, config.getInt("max-pending"));
+    this.pendingPermits = new Semaphore(maxPending);
+    this.requestTimeoutMillis = config.getDuration("request-timeout", TimeUnit.MILLISECONDS);
+    this.maxBodySize = Math.min(Integer.MAX_VALUE - 8, config.getBytes("max-body-size"));
+
+    this.deprojectifier = new Deprojectifier(session);
+    this.cache = SentenceCache.open(session);
+
+    int workerCount = config.getInt("workers");
+    if (workerCount <= 0)
+      workerCount = Runtime.getRuntime().availableProcessors();
+    for (int i = 0; i < workerCount; i++) {
+      Thread thread = new Thread(new Worker(), "parse-worker-" + (i + 1));
+      thread.setDaemon(true);
+      workers.add(thread);
+    }
+
+    int requestThreads = Math.max(1, config.getInt("request-threads"));
+    AtomicInteger threadCount = new AtomicInteger();
+    this.requestExecutor = Executors.newFixedThreadPool(requestThreads, r -> {
+      Thread thread = new Thread(r, "parse-request-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    this.server = HttpServer.create(new InetSocketAddress(config.getString("host"), config.getInt("port")), config.getInt("backlog"));
+    server.setExecutor(requestExecutor);
+    server.createContext("/parse", this::handleParse);
+    server.createContext("/health", this::handleHealth);
+    server.createContext("/metrics", this::handleMetrics);
+  }
+
+  public static void main(String[] args) throws IOException, ReflectiveOperationException, TalismaneException {
+    Map<String, String> options = ConllLayout.parseArgs(args);
+    String sessionId = options.containsKey("sessionId") ? options.get("sessionId") : "sr";
+    TalismaneSession session = new TalismaneSession(ConfigFactory.load(), sessionId);
+    ParseServer server = new ParseServer(session);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        server.close();
+      } catch (IOException e) {
+        LOG.error("Failed to close server", e);
+      }
+    }));
+    server.start();
+  }
+
+  public void start() {
+    for (Thread worker : workers)
+      worker.start();
+    server.start();
+    LOG.info("Listening on " + server.getAddress() + " with " + workers.size() + " workers");
+  }
+
+  /**
+   * The address the server is bound to, useful if the configured port is 0.
+   */
+  public InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  private final class Worker implements Runnable {
+    private final Tokeniser tokeniser;
+    private final PosTagger posTagger;
+    private final Parser parser;
+
+    Worker() throws IOException, ReflectiveOperationException, TalismaneException {
+      this.tokeniser = Tokeniser.getInstance(session);
+      this.posTagger = PosTaggers.getPosTagger(session);
+      this.parser = Parsers.getParser(session);
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        Job job;
+        try {
+          job = queue.take();
+        } catch (InterruptedException e) {
+          break;
+        }
+        this.process(job);
+      }
+    }
+
+    /**
+     * Tokenise and pos-tag the sentence unless already pos-tagged, then parse
+     * and de-projectify it, unless its request has already given up.
+     */
+    private void process(Job job) {
+      if (job.result.isDone())
+        return;
+      try {
+        long startTime = System.nanoTime();
+        if (job.posTagSequence == null) {
+          TokenSequence tokenSequence = tokeniser.tokeniseSentence(new Sentence(job.text, session));
+          job.posTagSequence = posTagger.tagSentence(tokenSequence);
+        }
+        long parseStart = System.nanoTime();
+        tagNanos.add(parseStart - startTime);
+        ParseConfiguration parseConfiguration = parser.parseSentence(job.posTagSequence);
+        long deprojectifyStart = System.nanoTime();
+        parseNanos.add(deprojectifyStart - parseStart);
+        deprojectifier.onNextParseConfiguration(parseConfiguration);
+        AnalysedSentence sentence = AnalysedSentence.of(parseConfiguration);
+        deprojectifyNanos.add(System.nanoTime() - deprojectifyStart);
+        if (cache != null)
+          cache.put(job.cacheKey, sentence);
+        job.result.complete(sentence);
+      } catch (TalismaneException | IOException | RuntimeException e) {
+        job.result.completeExceptionally(e);
+      }
+    }
+  }
+
+  private void handleParse(HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        this.send(exchange, 405, "text/plain", "Use POST\n");
+        return;
+      }
+      requests.increment();
+      Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+      String input = params.containsKey("input") ? params.get("input") : "text";
+      String output = params.containsKey("output") ? params.get("output") : "conll";
+      if (!("text".equals(input) || "conll".equals(input)) || !("conll".equals(output) || "json".equals(output))) {
+        failedRequests.increment();
+        this.send(exchange, 400, "text/plain", "Unknown input or output format\n");
+        return;
+      }
+
+      String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+      String body = null;
+      if (contentLength == null || parseLength(contentLength) <= maxBodySize)
+        body = readBody(exchange.getRequestBody(), maxBodySize);
+      if (body == null) {
+        rejectedRequests.increment();
+        this.send(exchange, 413, "text/plain", "Request body larger than " + maxBodySize + " bytes\n");
+        return;
+      }
+
+      List<Job> jobs;
+      try {
+        jobs = this.readJobs(body, input);
+      } catch (TalismaneException | ReflectiveOperationException | RuntimeException e) {
+        failedRequests.increment();
+        this.send(exchange, 400, "text/plain", "Unreadable input: " + e.getMessage() + "\n");
+        return;
+      }
+      sentences.add(jobs.size());
+
+      // sentences found in the cache skip the analysis altogether
+      AnalysedSentence[] results = new AnalysedSentence[jobs.size()];
+      List<Job> pendingJobs = new ArrayList<>(jobs.size());
+      for (int i = 0; i < jobs.size(); i++) {
+        Job job = jobs.get(i);
+        if (job.cacheKey != null)
+          results[i] = cache.get(job.cacheKey);
+        if (results[i] == null)
+          pendingJobs.add(job);
+      }
+
+      if (pendingJobs.size() > maxPending || !pendingPermits.tryAcquire(pendingJobs.size())) {
+        rejectedRequests.increment();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        this.send(exchange, 503, "text/plain", "Too many pending sentences\n");
+        return;
+      }
+      for (Job job : pendingJobs)
+        job.result.whenComplete((sentence, e) -> pendingPermits.release());
+      queue.addAll(pendingJobs);
+
+      long deadline = System.currentTimeMillis() + requestTimeoutMillis;
+      try {
+        for (int i = 0; i < jobs.size(); i++) {
+          if (results[i] == null)
+            results[i] = jobs.get(i).result.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+      } catch (TimeoutException | InterruptedException e) {
+        for (Job job : pendingJobs)
+          job.result.cancel(false);
+        failedRequests.increment();
+        this.send(exchange, 504, "text/plain", "Timed out\n");
+        if (e instanceof InterruptedException)
+          Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        for (Job job : pendingJobs)
+          job.result.cancel(false);
+        failedRequests.increment();
+        LOG.error("Failed to analyse request", e.getCause());
+        this.send(exchange, 500, "text/plain", "Analysis failed: " + e.getCause().getMessage() + "\n");
+        return;
+      }
+
+      StringBuilder sb = new StringBuilder();
+      if ("json".equals(output)) {
+        sb.append("{\"sentences\":[");
+        for (int i = 0; i < results.length; i++) {
+          if (i > 0)
+            sb.append(',');
+          results[i].writeJson(sb);
+        }
+        sb.append("]}\n");
+        this.send(exchange, 200, "application/json", sb.toString());
+      } else {
+        for (AnalysedSentence result : results)
+          result.writeConll(sb);
+        this.send(exchange, 200, "text/plain", sb.toString());
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Read raw text as one sentence per non-blank line, and CoNLL with the
+   * session's pos-tagger corpus reader. If caching, raw sentences are keyed by
+   * their text, and pos-tagged sentences by their tokens and pos-tags.
+   */
+  private List<Job> readJobs(String body, String input) throws IOException, ReflectiveOperationException, TalismaneException {
+    List<Job> jobs = new ArrayList<>();
+    if ("text".equals(input)) {
+      for (String line : body.split("\r?\n")) {
+        if (line.trim().length() > 0)
+          jobs.add(new Job(line, null, cache == null ? null : cache.getKey(input, line)));
+      }
+    } else {
+      Config inputConfig = session.getConfig().getConfig("talismane.core." + session.getSessionId() + ".pos-tagger.input");
+      PosTagAnnotatedCorpusReader corpusReader = PosTagAnnotatedCorpusReader.getCorpusReader(new StringReader(body), inputConfig, session);
+      while (corpusReader.hasNextSentence()) {
+        PosTagSequence posTagSequence = corpusReader.nextPosTagSequence();
+        String cacheKey = null;
+        if (cache != null) {
+          StringBuilder sb = new StringBuilder();
+          for (PosTaggedToken token : posTagSequence) {
+            if (token.getIndex() > 0)
+              sb.append(token.getToken().getOriginalText()).append('\t').append(token.getTag().getCode()).append('\n');
+          }
+          cacheKey = cache.getKey(input, sb.toString());
+        }
+        jobs.add(new Job(null, posTagSequence, cacheKey));
+      }
+    }
+    return jobs;
+  }
+
+  private void handleHealth(HttpExchange exchange) throws IOException {
+    try {
+      this.send(exchange, 200, "application/json", "{\"status\":\"UP\"}\n");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void handleMetrics(HttpExchange exchange) throws IOException {
+    try {
+      StringBuilder sb = new StringBuilder();
+      sb.append("{");
+      sb.append("\"uptimeMillis\":").append(System.currentTimeMillis() - startTime);
+      sb.append(",\"workers\":").append(workers.size());
+      sb.append(",\"requests\":").append(requests.sum());
+      sb.append(",\"rejectedRequests\":").append(rejectedRequests.sum());
+      sb.append(",\"failedRequests\":").append(failedRequests.sum());
+      sb.append(",\"sentences\":").append(sentences.sum());
+      sb.append(",\"pendingSentences\":").append(maxPending - pendingPermits.availablePermits());
+      sb.append(",\"maxPendingSentences\":").append(maxPending);
+      sb.append(",\"tagMillis\":").append(TimeUnit.NANOSECONDS.toMillis(tagNanos.sum()));
+      sb.append(",\"parseMillis\":").append(TimeUnit.NANOSECONDS.toMillis(parseNanos.sum()));
+      sb.append(",\"deprojectifyMillis\":").append(TimeUnit.NANOSECONDS.toMillis(deprojectifyNanos.sum()));
+      if (cache != null) {
+        sb.append(",\"cacheHits\":").append(cache.getHits());
+        sb.append(",\"cacheDiskHits\":").append(cache.getDiskHits());
+        sb.append(",\"cacheMisses\":").append(cache.getMisses());
+        sb.append(",\"cacheSentences\":").append(cache.size());
+        sb.append(",\"cacheBytes\":").append(cache.getWeight());
+      }
+      sb.append("}\n");
+      this.send(exchange, 200, "application/json", sb.toString());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Read the body as UTF-8, or return null as soon as it exceeds the maximum
+   * size, without reading the rest.
+   */
+  private static String readBody(InputStream in, long maxSize) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = in.read(buffer)) >= 0) {
+      if (bytes.size() + count > maxSize)
+        return null;
+      bytes.write(buffer, 0, count);
+    }
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * The declared content length, or {@link Long#MAX_VALUE} if it is invalid.
+   */
+  private static long parseLength(String contentLength) {
+    try {
+      return Long.parseLong(contentLength.trim());
+    } catch (NumberFormatException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private static Map<String, String> parseQuery(String query) throws IOException {
+    Map<String, String> params = new HashMap<>();
+    if (query == null)
+      return params;
+    for (String param : query.split("&")) {
+      int equals = param.indexOf('=');
+      if (equals > 0)
+        params.put(URLDecoder.decode(param.substring(0, equals), "UTF-8"), URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+    }
+    return params;
+  }
+
+  /**
+   * Stop accepting requests, give those in progress a second to finish, and
+   * stop the workers.
+   */
+  @Override
+  public void close() throws IOException {
+    server.stop(1);
+    requestExecutor.shutdownNow();
+    for (Thread worker : workers)
+      worker.interrupt();
+    Job job;
+    while ((job = queue.poll()) != null)
+      job.result.cancel(false);
+    deprojectifier.close();
+  }
+}
@@ -0,0 +1,439 @@
+package com.joliciel.talismane.sr;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.typesafe.config.Config;
+
+/**
+ * Latency and throughput metrics for the {@link Deprojectifier} and the
+ * {@link NonProjectiveEvaluator}, enabled in
+ * <code>talismane.serbian.metrics</code>: when disabled, no metrics are
+ * opened, and the processors do no timing at all.<br/>
+ * <br/>
+ * Each sentence's processing time is added to a histogram of power-of-two
+ * microsecond buckets, one histogram per sentence length bucket, so that the
+ * way latency grows with length can be followed, and the slowest sentence is
+ * remembered. For the de-projectifier, the number of candidate heads of each
+ * arc handled by a rule and the number of morphological agreement checks are
+ * counted as well. All counters are {@link LongAdder}s, so that threads
+ * processing sentences in parallel don't contend.<br/>
+ * <br/>
+ * The metrics are registered as the MBean
+ * <code>com.joliciel.talismane.sr:type=ProcessorMetrics,name=&lt;name&gt;</code>,
+ * and written every <code>interval</code> to
+ * <code>&lt;dir&gt;/&lt;name&gt;-latency.csv</code> (one row per length
+ * bucket) and <code>&lt;dir&gt;/&lt;name&gt;-summary.csv</code> (throughput,
+ * slowest sentence, candidates and agreement checks), as well as when closed.
+ * A numeric suffix is added to the name if a processor of the same name is
+ * already being measured.
+ *
+ * @author Assaf Urieli
+ *
+ */
+public final class ProcessorMetrics implements ProcessorMetricsMBean, Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(ProcessorMetrics.class);
+  private static final Set<String> NAMES = ConcurrentHashMap.newKeySet();
+
+  private static final int[] LENGTH_LIMITS = { 10, 20, 30, 50, 100, Integer.MAX_VALUE };
+  private static final int LATENCY_BUCKETS = 32;
+  private static final int CANDIDATE_BUCKETS = 16;
+
+  private final String name;
+  private final File dir;
+  private final ObjectName objectName;
+  private final ScheduledExecutorService scheduler;
+  private final long startTime = System.nanoTime();
+
+  private final LongAdder sentences = new LongAdder();
+  private final LongAdder[] latencies = adders(LENGTH_LIMITS.length * LATENCY_BUCKETS);
+  private final LongAdder[] totalNanos = adders(LENGTH_LIMITS.length);
+  private final AtomicLong[] maxNanos = new AtomicLong[LENGTH_LIMITS.length];
+  private final Object slowestLock = new Object();
+  private long slowestNanos = -1;
+  private long slowestSentence = -1;
+
+  private final LongAdder arcs = new LongAdder();
+  private final LongAdder candidates = new LongAdder();
+  private final LongAdder[] candidateCounts = adders(CANDIDATE_BUCKETS);
+  private final LongAdder agreementChecks = new LongAdder();
+
+  private long lastDumpTime = startTime;
+  private long lastDumpSentences = 0;
+  private boolean closed = false;
+
+  private ProcessorMetrics(String name, File dir, boolean jmx, long interval) {
+    this.name = name;
+    this.dir = dir;
+    for (int i = 0; i < maxNanos.length; i++)
+      maxNanos[i] = new AtomicLong();
+
+    ObjectName registeredName = null;
+    if (jmx) {
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        registeredName = new ObjectName("com.joliciel.talismane.sr:type=ProcessorMetrics,name=" + name);
+        server.registerMBean(this, registeredName);
+      } catch (JMException e) {
+        LOG.warn("Failed to register metrics MBean for " + name + ": " + e.getMessage());
+        registeredName = null;
+      }
+    }
+    this.objectName = registeredName;
+
+    if (dir != null && interval > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "metrics-" + name);
+        thread.setDaemon(true);
+        return thread;
+      });
+      scheduler.scheduleAtFixedRate(this::dump, interval, interval, TimeUnit.MILLISECONDS);
+    } else {
+      scheduler = null;
+    }
+  }
+
+  private static LongAdder[] adders(int size) {
+    LongAdder[] adders = new LongAdder[size];
+    for (int i = 0; i < size; i++)
+      adders[i] = new LongAdder();
+    return adders;
+  }
+
+  /**
+   * Open the metrics of a processor, or return null if metrics are disabled.
+   */
+  static ProcessorMetrics open(Config config, String name) {
+    Config metricsConfig = config.getConfig("talismane.serbian.metrics");
+    if (!metricsConfig.getBoolean("enabled"))
+      return null;
+    String uniqueName = name;
+    for (int i = 1; !NAMES.add(uniqueName); i++)
+      uniqueName = name + "-" + i;
+    String dirPath = metricsConfig.getString("dir");
+    File dir = null;
+    if (dirPath.length() > 0) {
+      dir = new File(dirPath);
+      dir.mkdirs();
+    }
+    LOG.info("Measuring " + uniqueName + (dir == null ? "" : ", writing metrics to " + dir.getPath()));
+    return new ProcessorMetrics(uniqueName, dir, metricsConfig.getBoolean("jmx"), metricsConfig.getDuration("interval", TimeUnit.MILLISECONDS));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Record the time taken to process a sentence.
+   *
+   * @param sentenceId
+   *          the sentence number, remembered if it is the slowest so far
+   * @param length
+   *          the number of tokens, excluding the root
+   * @param nanos
+   *          the time taken, in nanoseconds
+   */
+  void sentence(long sentenceId, int length, long nanos) {
+    int lengthBucket = 0;
+    while (length > LENGTH_LIMITS[lengthBucket])
+      lengthBucket++;
+    latencies[lengthBucket * LATENCY_BUCKETS + latencyBucket(nanos / 1000)].increment();
+    totalNanos[lengthBucket].add(nanos);
+    sentences.increment();
+    AtomicLong max = maxNanos[lengthBucket];
+    if (nanos > max.get()) {
+      max.accumulateAndGet(nanos, Math::max);
+      synchronized (slowestLock) {
+        if (nanos > slowestNanos) {
+          slowestNanos = nanos;
+          slowestSentence = sentenceId;
+        }
+      }
+    }
+  }
+
+  /**
+   * Record the number of candidate heads considered for an arc.
+   */
+  void arc(int candidateCount) {
+    arcs.increment();
+    candidates.add(candidateCount);
+    candidateCounts[Math.min(CANDIDATE_BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(candidateCount))].increment();
+  }
+
+  void agreementChecks(long count) {
+    if (count > 0)
+      agreementChecks.add(count);
+  }
+
+  /**
+   * Bucket b holds latencies in [2<sup>b-1</sup>, 2<sup>b</sup>)
+   * microseconds, bucket 0 holding latencies under a microsecond.
+   */
+  private static int latencyBucket(long micros) {
+    return Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+  }
+
+  private static long latencyLimit(int bucket) {
+    return 1L << bucket;
+  }
+
+  @Override
+  public long getSentences() {
+    return sentences.sum();
+  }
+
+  @Override
+  public double getSentencesPerSecond() {
+    return perSecond(sentences.sum(), System.nanoTime() - startTime);
+  }
+
+  @Override
+  public synchronized double getRecentSentencesPerSecond() {
+    return perSecond(sentences.sum() - lastDumpSentences, System.nanoTime() - lastDumpTime);
+  }
+
+  private static double perSecond(long count, long nanos) {
+    return nanos <= 0 ? 0.0 : count * 1e9 / nanos;
+  }
+
+  @Override
+  public String[] getLengthBuckets() {
+    String[] labels = new String[LENGTH_LIMITS.length];
+    for (int i = 0; i < LENGTH_LIMITS.length; i++) {
+      int from = i == 0 ? 1 : LENGTH_LIMITS[i - 1] + 1;
+      labels[i] = LENGTH_LIMITS[i] == Integer.MAX_VALUE ? from + "+" : from + "-" + LENGTH_LIMITS[i];
+    }
+    return labels;
+  }
+
+  private long[] getHistogram(int lengthBucket) {
+    long[] histogram = new long[LATENCY_BUCKETS];
+    for (int i = 0; i < LATENCY_BUCKETS; i++)
+      histogram[i] = latencies[lengthBucket * LATENCY_BUCKETS + i].sum();
+    return histogram;
+  }
+
+  /**
+   * The upper bound, in microseconds, of the bucket holding the given quantile
+   * of a histogram, or 0 if empty.
+   */
+  private static long getQuantile(long[] histogram, double quantile) {
+    long count = 0;
+    for (long bucketCount : histogram)
+      count += bucketCount;
+    if (count == 0)
+      return 0;
+    long rank = (long) Math.ceil(quantile * count);
+    long cumulated = 0;
+    for (int i = 0; i < histogram.length; i++) {
+      cumulated += histogram[i];
+      if (cumulated >= rank)
+        return latencyLimit(i);
+    }
+    return latencyLimit(histogram.length - 1);
+  }
+
+  @Override
+  public long[] getSentencesByLength() {
+    long[] counts = new long[LENGTH_LIMITS.length];
+    for (int i = 0; i < LENGTH_LIMITS.length; i++) {
+      for (long bucketCount : this.getHistogram(i))
+        counts[i] += bucketCount;
+    }
+    return counts;
+  }
+
+  @Override
+  public double[] getMeanLatencyByLength() {
+    long[] counts = this.getSentencesByLength();
+    double[] means = new double[LENGTH_LIMITS.length];
+    for (int i = 0; i < LENGTH_LIMITS.length; i++)
+      means[i] = counts[i] == 0 ? 0.0 : totalNanos[i].sum() / 1000.0 / counts[i];
+    return means;
+  }
+
+  @Override
+  public long[] getMedianLatencyByLength() {
+    return this.getQuantileByLength(0.5);
+  }
+
+  @Override
+  public long[] getP99LatencyByLength() {
+    return this.getQuantileByLength(0.99);
+  }
+
+  private long[] getQuantileByLength(double quantile) {
+    long[] quantiles = new long[LENGTH_LIMITS.length];
+    for (int i = 0; i < LENGTH_LIMITS.length; i++)
+      quantiles[i] = getQuantile(this.getHistogram(i), quantile);
+    return quantiles;
+  }
+
+  @Override
+  public long[] getMaxLatencyByLength() {
+    long[] max = new long[LENGTH_LIMITS.length];
+    for (int i = 0; i < LENGTH_LIMITS.length; i++)
+      max[i] = maxNanos[i].get() / 1000;
+    return max;
+  }
+
+  @Override
+  public long getSlowestSentence() {
+    synchronized (slowestLock) {
+      return slowestSentence;
+    }
+  }
+
+  private long getSlowestNanos() {
+    synchronized (slowestLock) {
+      return slowestNanos;
+    }
+  }
+
+  @Override
+  public long getArcs() {
+    return arcs.sum();
+  }
+
+  @Override
+  public double getMeanCandidatesPerArc() {
+    long arcCount = arcs.sum();
+    return arcCount == 0 ? 0.0 : (double) candidates.sum() / arcCount;
+  }
+
+  @Override
+  public long getAgreementChecks() {
+    return agreementChecks.sum();
+  }
+
+  /**
+   * Write the metrics files, if a directory is configured. Failures are
+   * logged, so as never to interrupt processing.
+   */
+  @Override
+  public synchronized void dump() {
+    if (dir != null) {
+      try {
+        this.writeLatency();
+        this.writeSummary();
+      } catch (IOException e) {
+        LOG.warn("Failed to write metrics for " + name + ": " + e.getMessage());
+      }
+    }
+    lastDumpTime = System.nanoTime();
+    lastDumpSentences = sentences.sum();
+  }
+
+  private void writeLatency() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append("length,sentences,mean micros,median micros,p90 micros,p99 micros,max micros");
+    for (int i = 0; i < LATENCY_BUCKETS; i++)
+      sb.append(",<").append(latencyLimit(i)).append(" micros");
+    sb.append('\n');
+    String[] labels = this.getLengthBuckets();
+    for (int i = 0; i < LENGTH_LIMITS.length; i++) {
+      long[] histogram = this.getHistogram(i);
+      long count = 0;
+      for (long bucketCount : histogram)
+        count += bucketCount;
+      sb.append(labels[i]).append(',').append(count);
+      sb.append(String.format(Locale.US, ",%.1f", count == 0 ? 0.0 : totalNanos[i].sum() / 1000.0 / count));
+      sb.append(',').append(getQuantile(histogram, 0.5));
+      sb.append(',').append(getQuantile(histogram, 0.9));
+      sb.append(',').append(getQuantile(histogram, 0.99));
+      sb.append(',').append(maxNanos[i].get() / 1000);
+      for (long bucketCount : histogram)
+        sb.append(',').append(bucketCount);
+      sb.append('\n');
+    }
+    this.write(name + "-latency.csv", sb);
+  }
+
+  private void writeSummary() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append("metric,value\n");
+    sb.append("sentences,").append(sentences.sum()).append('\n');
+    sb.append(String.format(Locale.US, "seconds,%.1f\n", (System.nanoTime() - startTime) / 1e9));
+    sb.append(String.format(Locale.US, "sentences/sec,%.1f\n", this.getSentencesPerSecond()));
+    sb.append(String.format(Locale.US, "recent sentences/sec,%.1f\n", this.getRecentSentencesPerSecond()));
+    sb.append("slowest sentence,").append(this.getSlowestSentence()).append('\n');
+    sb.append("slowest sentence micros,").append(Math.max(0, this.getSlowestNanos()) / 1000).append('\n');
+    sb.append("arcs,").append(arcs.sum()).append('\n');
+    sb.append(String.format(Locale.US, "mean candidates per arc,%.2f\n", this.getMeanCandidatesPerArc()));
+    for (int i = 0; i < CANDIDATE_BUCKETS; i++) {
+      int from = i <= 1 ? i : 1 << (i - 1);
+      String label = i <= 1 ? Integer.toString(i) : i == CANDIDATE_BUCKETS - 1 ? from + "+" : from + "-" + ((1 << i) - 1);
+      sb.append("arcs with ").append(label).append(" candidates,").append(candidateCounts[i].sum()).append('\n');
+    }
+    sb.append("agreement checks,").append(agreementChecks.sum()).append('\n');
+    this.write(name + "-summary.csv", sb);
+  }
+
+  /**
+   * Write to a temporary file which is then moved into place, so that readers
+   * never see a partial file.
+   */
+  private void write(String fileName, StringBuilder sb) throws IOException {
+    File file = new File(dir, fileName);
+    File tempFile = new File(dir, fileName + ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+      writer.write(sb.toString());
+    }
+    try {
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Stop the periodic dumps, write the metrics a last time, and unregister the
+   * MBean. Does nothing if already closed.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed)
+        return;
+      closed = true;
+    }
+    if (scheduler != null)
+      scheduler.shutdownNow();
+    this.dump();
+    if (dir != null)
+      LOG.info("Metrics for " + name + ": " + sentences.sum() + " sentences, " + String.format(Locale.US, "%.1f", this.getSentencesPerSecond())
+          + " sentences/sec, written to " + dir.getPath());
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        LOG.warn("Failed to unregister metrics MBean for " + name + ": " + e.getMessage());
+      }
+    }
+    NAMES.remove(name);
+  }
+}
@@ -0,0 +1,63 @@
+package com.joliciel.talismane.sr;
+
+/**
+ * The JMX view of {@link ProcessorMetrics}. Per-length values are arrays
+ * indexed as {@link #getLengthBuckets()}, and latencies are in microseconds,
+ * percentiles being the upper bound of their power-of-two histogram bucket.
+ *
+ * @author Assaf Urieli
+ *
+ */
+public interface ProcessorMetricsMBean {
+  /**
+   * The sentences processed.
+   */
+  long getSentences();
+
+  /**
+   * Sentences per second since the metrics were opened.
+   */
+  double getSentencesPerSecond();
+
+  /**
+   * Sentences per second since the previous dump.
+   */
+  double getRecentSentencesPerSecond();
+
+  /**
+   * The length bucket labels, e.g. "11-20".
+   */
+  String[] getLengthBuckets();
+
+  long[] getSentencesByLength();
+
+  double[] getMeanLatencyByLength();
+
+  long[] getMedianLatencyByLength();
+
+  long[] getP99LatencyByLength();
+
+  long[] getMaxLatencyByLength();
+
+  /**
+   * The number of the slowest sentence so far, or -1 if none.
+   */
+  long getSlowestSentence();
+
+  /**
+   * The arcs handled by a de-projection rule.
+   */
+  long getArcs();
+
+  double getMeanCandidatesPerArc();
+
+  /**
+   * Morphological agreement checks between a candidate head and its dependent.
+   */
+  long getAgreementChecks();
+
+  /**
+   * Write the metrics files now, rather than waiting for the next interval.
+   */
+  void dump();
+}
@@ -0,0 +1,66 @@
+package com.joliciel.talismane.sr;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe counts of diagnostic reasons, keyed by interned reason id, so
+ * that concurrent increments on the same reason don't contend on a lock.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class ReasonCounts {
+  private final SymbolTable reasons = new SymbolTable();
+  private volatile LongAdder[] counts = new LongAdder[16];
+
+  /**
+   * Intern a reason, returning its id.
+   */
+  public int getId(String reason) {
+    return reasons.intern(reason);
+  }
+
+  public String getReason(int id) {
+    return reasons.getSymbol(id);
+  }
+
+  public void increment(String reason) {
+    this.increment(reasons.intern(reason));
+  }
+
+  public void increment(int id) {
+    LongAdder[] current = counts;
+    LongAdder count = id < current.length ? current[id] : null;
+    if (count == null)
+      count = this.getOrCreate(id);
+    count.increment();
+  }
+
+  private synchronized LongAdder getOrCreate(int id) {
+    LongAdder[] current = counts;
+    if (id >= current.length) {
+      LongAdder[] grown = new LongAdder[Math.max(id + 1, current.length * 2)];
+      System.arraycopy(current, 0, grown, 0, current.length);
+      current = grown;
+    }
+    if (current[id] == null)
+      current[id] = new LongAdder();
+    counts = current;
+    return current[id];
+  }
+
+  /**
+   * A snapshot of all non-zero counts, sorted by reason.
+   */
+  public Map<String, Long> getCounts() {
+    Map<String, Long> snapshot = new TreeMap<>();
+    LongAdder[] current = counts;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] != null && current[i].sum() > 0)
+        snapshot.put(reasons.getSymbol(i), current[i].sum());
+    }
+    return snapshot;
+  }
+}
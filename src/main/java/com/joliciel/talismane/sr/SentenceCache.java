@@ -0,0 +1,278 @@
+package com.joliciel.talismane.sr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.joliciel.talismane.TalismaneSession;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigRenderOptions;
+import com.typesafe.config.ConfigValue;
+
+/**
+ * A cache of {@link AnalysedSentence}s, so that sentences seen before are not
+ * pos-tagged, parsed and de-projectified again. Enabled in
+ * <code>talismane.serbian.cache</code>.<br/>
+ * <br/>
+ * Sentences are content-addressed: the key is a SHA-256 hash of the session
+ * fingerprint and the sentence itself. The fingerprint covers the session's
+ * Talismane and Serbian configuration, as well as the size and modification
+ * time of its models and resources, so that changing any of them changes every
+ * key, and stale analyses are never returned.<br/>
+ * <br/>
+ * The cache has two tiers: an in-memory LRU tier, which evicts the least
+ * recently used sentences once their estimated size exceeds
+ * <code>memory-size</code>, and an optional on-disk tier in
+ * <code>dir</code>, which persists across runs. On disk, each sentence is
+ * written as CoNLL to its own file, named after its key, and sentences found
+ * there are promoted to memory. The disk tier is never evicted: delete the
+ * directory to clear it.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class SentenceCache {
+  private static final Logger LOG = LoggerFactory.getLogger(SentenceCache.class);
+
+  private final byte[] fingerprint;
+  private final long maxWeight;
+  private final File dir;
+  private final LinkedHashMap<String, AnalysedSentence> memory = new LinkedHashMap<>(16, 0.75f, true);
+  private long weight = 0;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  SentenceCache(byte[] fingerprint, long maxWeight, File dir) {
+    this.fingerprint = fingerprint;
+    this.maxWeight = maxWeight;
+    this.dir = dir;
+  }
+
+  /**
+   * Open the cache for a session, or return null if caching is disabled.
+   */
+  static SentenceCache open(TalismaneSession session) {
+    Config config = session.getConfig();
+    Config cacheConfig = config.getConfig("talismane.serbian.cache");
+    if (!cacheConfig.getBoolean("enabled"))
+      return null;
+    String dirPath = cacheConfig.getString("dir");
+    File dir = null;
+    if (dirPath.length() > 0) {
+      dir = new File(dirPath);
+      dir.mkdirs();
+    }
+    byte[] fingerprint = fingerprint(config, session.getSessionId());
+    LOG.info("Caching sentences in memory" + (dir == null ? "" : " and in " + dir.getPath()) + ", fingerprint " + hex(fingerprint).substring(0, 12));
+    return new SentenceCache(fingerprint, cacheConfig.getBytes("memory-size"), dir);
+  }
+
+  /**
+   * A hash of the configuration used to analyse sentences, and of the files it
+   * refers to.
+   */
+  private static byte[] fingerprint(Config config, String sessionId) {
+    MessageDigest digest = sha256();
+    ConfigRenderOptions options = ConfigRenderOptions.concise();
+    List<String> paths = new ArrayList<>();
+    paths.add("talismane.core." + sessionId);
+    paths.add("talismane.serbian.deprojectifier");
+    for (String path : paths) {
+      if (!config.hasPath(path))
+        continue;
+      digest.update(path.getBytes(StandardCharsets.UTF_8));
+      digest.update(config.getValue(path).render(options).getBytes(StandardCharsets.UTF_8));
+    }
+    // the session's models, lexicons and other resources
+    Config sessionConfig = config.getConfig("talismane.core." + sessionId);
+    for (Map.Entry<String, ConfigValue> entry : sessionConfig.entrySet()) {
+      Object value = entry.getValue().unwrapped();
+      List<?> values = value instanceof List ? (List<?>) value : Collections.singletonList(value);
+      for (Object path : values) {
+        if (!(path instanceof String))
+          continue;
+        File file = new File((String) path);
+        if (file.isFile())
+          digest.update((path + "\t" + file.length() + "\t" + file.lastModified()).getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return digest.digest();
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes)
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    return sb.toString();
+  }
+
+  /**
+   * The key of a sentence.
+   *
+   * @param input
+   *          the kind of input the sentence was given as, e.g. raw text or
+   *          pos-tagged tokens
+   * @param sentence
+   *          the sentence, including anything which affects its analysis,
+   *          such as the pos-tags if given
+   */
+  String getKey(String input, String sentence) {
+    MessageDigest digest = sha256();
+    digest.update(fingerprint);
+    digest.update(input.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(sentence.getBytes(StandardCharsets.UTF_8));
+    return hex(digest.digest());
+  }
+
+  /**
+   * The analysis cached for a key, in memory or on disk, or null if none.
+   */
+  AnalysedSentence get(String key) {
+    AnalysedSentence sentence;
+    synchronized (memory) {
+      sentence = memory.get(key);
+    }
+    if (sentence != null) {
+      hits.increment();
+      return sentence;
+    }
+    if (dir != null) {
+      sentence = this.read(key);
+      if (sentence != null) {
+        diskHits.increment();
+        this.putInMemory(key, sentence);
+        return sentence;
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  void put(String key, AnalysedSentence sentence) {
+    this.putInMemory(key, sentence);
+    if (dir != null)
+      this.write(key, sentence);
+  }
+
+  private void putInMemory(String key, AnalysedSentence sentence) {
+    long sentenceWeight = sentence.getWeight();
+    if (sentenceWeight > maxWeight)
+      return;
+    synchronized (memory) {
+      AnalysedSentence previous = memory.put(key, sentence);
+      if (previous != null)
+        weight -= previous.getWeight();
+      weight += sentenceWeight;
+      Iterator<AnalysedSentence> iterator = memory.values().iterator();
+      while (weight > maxWeight && iterator.hasNext()) {
+        weight -= iterator.next().getWeight();
+        iterator.remove();
+      }
+    }
+  }
+
+  private File getFile(String key) {
+    return new File(new File(dir, key.substring(0, 2)), key + ".conll");
+  }
+
+  private AnalysedSentence read(String key) {
+    File file = this.getFile(key);
+    if (!file.exists())
+      return null;
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      List<String> lines = new ArrayList<>();
+      String line;
+      while ((line = reader.readLine()) != null && line.length() > 0)
+        lines.add(line);
+      return AnalysedSentence.readConll(lines);
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Ignoring unreadable cache file " + file.getPath() + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Write to a temporary file which is then moved into place, so that readers
+   * never see a partial file.
+   */
+  private void write(String key, AnalysedSentence sentence) {
+    File file = this.getFile(key);
+    if (file.exists())
+      return;
+    file.getParentFile().mkdirs();
+    StringBuilder sb = new StringBuilder();
+    sentence.writeConll(sb);
+    File tempFile = new File(file.getParentFile(), key + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      try (Writer writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+        writer.write(sb.toString());
+      }
+      try {
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to write cache file " + file.getPath() + ": " + e.getMessage());
+      tempFile.delete();
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getDiskHits() {
+    return diskHits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * The number of sentences in memory.
+   */
+  public int size() {
+    synchronized (memory) {
+      return memory.size();
+    }
+  }
+
+  /**
+   * The estimated size of the sentences in memory, in bytes.
+   */
+  public long getWeight() {
+    synchronized (memory) {
+      return weight;
+    }
+  }
+}
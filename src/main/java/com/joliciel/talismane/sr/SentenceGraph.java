@@ -0,0 +1,247 @@
+package com.joliciel.talismane.sr;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.joliciel.talismane.parser.DependencyArc;
+import com.joliciel.talismane.parser.ParseConfiguration;
+import com.joliciel.talismane.posTagger.PosTagSequence;
+import com.joliciel.talismane.posTagger.PosTaggedToken;
+
+/**
+ * A compact, array-based view of a sentence's projective dependency tree,
+ * built once per sentence so that head chains, governing labels and dependents
+ * can be looked up by token index in constant time, instead of repeatedly
+ * querying the {@link ParseConfiguration}.<br/>
+ * <br/>
+ * Token indexes are those of the {@link PosTagSequence}, with the root at
+ * index 0. A head or label of -1 indicates that the token has no governor.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class SentenceGraph {
+  static final SymbolTable TAGS = new SymbolTable();
+  static final SymbolTable LABELS = new SymbolTable();
+
+  static final int TAG_A = TAGS.intern("A");
+  static final int TAG_NUM = TAGS.intern("Num");
+  static final int TAG_N = TAGS.intern("N");
+  static final int TAG_P = TAGS.intern("P");
+  static final int TAG_V_MAIN = TAGS.intern("V_main");
+
+  private static final int UNKNOWN = -2;
+
+  private final int size;
+  private final int[] heads;
+  private final int[] tags;
+  private final int[] labels;
+  private final long[][] morphology;
+
+  private int[] verbs;
+  private int[] childStart;
+  private int[] children;
+  private int agreementChecks = 0;
+
+  SentenceGraph(int[] heads, int[] tags, int[] labels, long[][] morphology) {
+    this.size = heads.length;
+    this.heads = heads;
+    this.tags = tags;
+    this.labels = labels;
+    this.morphology = morphology;
+  }
+
+  /**
+   * Build a graph from the projective dependencies of a parse configuration.
+   * Morphology is only packed for nominal and adjectival tokens, the only ones
+   * for which agreement is tested.
+   */
+  public static SentenceGraph of(ParseConfiguration parseConfiguration) {
+    return of(parseConfiguration, true);
+  }
+
+  /**
+   * As {@link #of(ParseConfiguration)}, but only packing morphology if
+   * withMorphology is true. Without morphology, all tokens agree.
+   */
+  public static SentenceGraph of(ParseConfiguration parseConfiguration, boolean withMorphology) {
+    PosTagSequence sequence = parseConfiguration.getPosTagSequence();
+    int size = sequence.size();
+    int[] heads = new int[size];
+    int[] tags = new int[size];
+    int[] labels = new int[size];
+    long[][] morphology = new long[size][];
+    Arrays.fill(heads, -1);
+    Arrays.fill(labels, -1);
+    for (int i = 0; i < size; i++) {
+      PosTaggedToken token = sequence.get(i);
+      int tag = TAGS.intern(token.getTag().getCode());
+      tags[i] = tag;
+      if (withMorphology && (tag == TAG_A || tag == TAG_NUM || tag == TAG_N || tag == TAG_P))
+        morphology[i] = Morphology.of(token.getLexicalEntries());
+    }
+    for (DependencyArc arc : parseConfiguration.getDependencies()) {
+      int dep = arc.getDependent().getIndex();
+      heads[dep] = arc.getHead().getIndex();
+      labels[dep] = LABELS.intern(arc.getLabel() == null ? "" : arc.getLabel());
+    }
+    return new SentenceGraph(heads, tags, labels, morphology);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int getHead(int token) {
+    return heads[token];
+  }
+
+  public int getTag(int token) {
+    return tags[token];
+  }
+
+  public int getLabel(int token) {
+    return labels[token];
+  }
+
+  /**
+   * Whether the head and dependent tokens agree in gender, number and case, as
+   * per {@link Morphology#agree(long[], long[])}.
+   */
+  public boolean agrees(int head, int dep) {
+    agreementChecks++;
+    long[] headEntries = morphology[head];
+    long[] depEntries = morphology[dep];
+    if (headEntries == null || depEntries == null)
+      return true;
+    return Morphology.agree(headEntries, depEntries);
+  }
+
+  /**
+   * The number of calls to {@link #agrees(int, int)} so far.
+   */
+  int getAgreementChecks() {
+    return agreementChecks;
+  }
+
+  /**
+   * The nearest token with tag V_main on the head chain starting at (and
+   * including) the token provided, or -1 if the chain reaches the root without
+   * finding one. Memoized, so that all calls for a sentence take linear time
+   * overall.
+   */
+  public int getVerbalGovernor(int token) {
+    if (token < 0)
+      return -1;
+    if (verbs == null) {
+      verbs = new int[size];
+      Arrays.fill(verbs, UNKNOWN);
+    }
+    if (verbs[token] != UNKNOWN)
+      return verbs[token];
+
+    // walk up until we reach a known value, a verb or the root
+    int current = token;
+    int verb = -1;
+    int steps = 0;
+    while (current >= 0 && steps++ <= size) {
+      if (verbs[current] != UNKNOWN) {
+        verb = verbs[current];
+        break;
+      }
+      if (tags[current] == TAG_V_MAIN) {
+        verb = current;
+        break;
+      }
+      current = heads[current];
+    }
+
+    // fill in the path we've walked
+    current = token;
+    while (current >= 0 && verbs[current] == UNKNOWN) {
+      verbs[current] = verb;
+      if (current == verb)
+        break;
+      current = heads[current];
+    }
+    return verb;
+  }
+
+  /**
+   * The nearest token whose tag is in tags on the head chain starting at (and
+   * including) the token provided, or -1 if none. Unlike
+   * {@link #getVerbalGovernor(int)}, not memoized.
+   */
+  public int getGovernor(int token, BitSet governorTags) {
+    int current = token;
+    int steps = 0;
+    while (current >= 0 && steps++ <= size) {
+      if (governorTags.get(tags[current]))
+        return current;
+      current = heads[current];
+    }
+    return -1;
+  }
+
+  /**
+   * The smallest index of a direct dependent of head strictly greater than
+   * position, or -1 if none.
+   */
+  public int getFirstDependentAfter(int head, int position) {
+    this.buildChildren();
+    int from = childStart[head];
+    int to = childStart[head + 1];
+    int i = lowerBound(children, from, to, position + 1);
+    return i < to ? children[i] : -1;
+  }
+
+  /**
+   * The largest index of a direct dependent of head strictly smaller than
+   * position, or -1 if none.
+   */
+  public int getLastDependentBefore(int head, int position) {
+    this.buildChildren();
+    int from = childStart[head];
+    int to = childStart[head + 1];
+    int i = lowerBound(children, from, to, position) - 1;
+    return i >= from ? children[i] : -1;
+  }
+
+  private void buildChildren() {
+    if (children != null)
+      return;
+    // counting sort: since dependents are added in increasing index order, each
+    // head's slice ends up sorted
+    int[] start = new int[size + 1];
+    for (int i = 0; i < size; i++) {
+      if (heads[i] >= 0)
+        start[heads[i] + 1]++;
+    }
+    for (int i = 0; i < size; i++)
+      start[i + 1] += start[i];
+    int[] next = Arrays.copyOf(start, size);
+    int[] kids = new int[start[size]];
+    for (int i = 0; i < size; i++) {
+      if (heads[i] >= 0)
+        kids[next[heads[i]]++] = i;
+    }
+    this.childStart = start;
+    this.children = kids;
+  }
+
+  /**
+   * First index in the sorted range [from, to) whose value is &gt;= key.
+   */
+  static int lowerBound(int[] values, int from, int to, int key) {
+    int lo = from;
+    int hi = to;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (values[mid] < key)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+}
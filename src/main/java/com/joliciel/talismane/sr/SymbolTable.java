@@ -0,0 +1,55 @@
+package com.joliciel.talismane.sr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns strings (labels, tag codes) to dense integer ids, so that per-token
+ * comparisons can be made on ints rather than strings. Thread-safe: ids are
+ * never reassigned once given out.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class SymbolTable {
+  private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+  private final List<String> symbols = new ArrayList<>();
+
+  /**
+   * Return the id for this symbol, assigning a new one if required.
+   */
+  public int intern(String symbol) {
+    Integer id = ids.get(symbol);
+    if (id != null)
+      return id;
+    synchronized (symbols) {
+      id = ids.get(symbol);
+      if (id == null) {
+        id = symbols.size();
+        symbols.add(symbol);
+        ids.put(symbol, id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * Return the id for this symbol, or -1 if it has never been interned.
+   */
+  public int getId(String symbol) {
+    Integer id = ids.get(symbol);
+    return id == null ? -1 : id;
+  }
+
+  public String getSymbol(int id) {
+    synchronized (symbols) {
+      return symbols.get(id);
+    }
+  }
+
+  public int size() {
+    return ids.size();
+  }
+}
@@ -0,0 +1,226 @@
+package com.joliciel.talismane.sr;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.typesafe.config.Config;
+
+/**
+ * A compiled version of the ParCoLab morphosyntactic tag maps (e.g.
+ * <code>languagePack/parcolex_posTagMap.txt</code>), giving for each
+ * morphology tag such as <code>A_dem_acc_pl_f_-</code> its packed
+ * {@link Morphology}.<br/>
+ * <br/>
+ * The dictionary is compiled once at build time into a binary file, which is
+ * memory-mapped at runtime, and searched in place: nothing is read into the
+ * heap when opening it, and a lookup is a binary search over the sorted tags,
+ * comparing their bytes directly in the mapped file. The file is laid out as
+ * follows, big-endian:
+ * <ul>
+ * <li>magic number and version (two ints)</li>
+ * <li>number of tags (int)</li>
+ * <li>one 12-byte record per tag, in tag order: packed morphology (long) and
+ * the offset of the tag in the tag area (int)</li>
+ * <li>the tag area: each tag as a length (unsigned short) followed by its
+ * UTF-8 bytes, sorted by unsigned byte order</li>
+ * </ul>
+ * Usage, to compile the dictionary:
+ *
+ * <pre>
+ * java -cp talismane_sr-0.0.1-SNAPSHOT.jar com.joliciel.talismane.sr.TagDictionary --outFile=languagePack/sr-tags.dict --posTagMaps=languagePack/parcolex_posTagMap.txt,languagePack/parcolab-closed_posTagMap.txt
+ * </pre>
+ *
+ * If a tag appears in several maps, the first one wins.
+ *
+ * @author Assaf Urieli
+ *
+ */
+final class TagDictionary {
+  private static final Logger LOG = LoggerFactory.getLogger(TagDictionary.class);
+
+  private static final int MAGIC = 0x53525444; // "SRTD"
+  private static final int VERSION = 3;
+  private static final int HEADER_SIZE = 12;
+  private static final int RECORD_SIZE = 12;
+
+  private final ByteBuffer buffer;
+  private final int size;
+  private final int tagArea;
+
+  private TagDictionary(ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+      throw new IOException("Not a tag dictionary");
+    int version = buffer.getInt(4);
+    if (version != VERSION)
+      throw new IOException("Unsupported tag dictionary version " + version + ", expected " + VERSION);
+    this.buffer = buffer;
+    this.size = buffer.getInt(8);
+    this.tagArea = HEADER_SIZE + size * RECORD_SIZE;
+    if (tagArea > buffer.capacity())
+      throw new IOException("Truncated tag dictionary");
+  }
+
+  /**
+   * Memory-map a compiled dictionary.
+   */
+  static TagDictionary load(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new TagDictionary(buffer);
+    }
+  }
+
+  /**
+   * Map the dictionary at <code>talismane.serbian.tag-dictionary</code>, or
+   * return null if the setting is empty or the file does not exist.
+   */
+  static TagDictionary open(Config config) throws IOException {
+    String path = config.getString("talismane.serbian.tag-dictionary");
+    if (path.length() == 0)
+      return null;
+    File file = new File(path);
+    if (!file.exists()) {
+      LOG.debug("No tag dictionary at " + file.getPath() + ", parsing morphology instead");
+      return null;
+    }
+    TagDictionary dictionary = load(file);
+    LOG.debug("Mapped tag dictionary " + file.getPath() + " with " + dictionary.size() + " tags");
+    return dictionary;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * The index of a morphology tag, or -1 if unknown.
+   */
+  public int find(String tag) {
+    byte[] bytes = tag.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = size - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int comparison = this.compare(mid, bytes);
+      if (comparison < 0)
+        low = mid + 1;
+      else if (comparison > 0)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+  /**
+   * Compare the tag at the given index with a tag's bytes, in unsigned byte
+   * order.
+   */
+  private int compare(int index, byte[] bytes) {
+    int offset = tagArea + buffer.getInt(HEADER_SIZE + index * RECORD_SIZE + 8);
+    int length = buffer.getShort(offset) & 0xFFFF;
+    offset += 2;
+    int common = Math.min(length, bytes.length);
+    for (int i = 0; i < common; i++) {
+      int comparison = (buffer.get(offset + i) & 0xFF) - (bytes[i] & 0xFF);
+      if (comparison != 0)
+        return comparison;
+    }
+    return length - bytes.length;
+  }
+
+  public long getMorphology(int index) {
+    return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+  }
+
+  /**
+   * Compile the tag maps into a dictionary file. Each map line contains a tag
+   * and its part-of-speech, separated by a tab. Lines without a tab, such as
+   * the header, are skipped.
+   */
+  static void compile(List<File> posTagMaps, File outFile) throws IOException {
+    Map<String, String> posTags = new LinkedHashMap<>();
+    for (File posTagMap : posTagMaps) {
+      try (BufferedReader reader = Files.newBufferedReader(posTagMap.toPath(), StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          int tab = line.indexOf('\t');
+          if (tab < 0)
+            continue;
+          String tag = line.substring(0, tab).trim();
+          String posTag = line.substring(tab + 1).trim();
+          String existing = posTags.putIfAbsent(tag, posTag);
+          if (existing != null && !existing.equals(posTag))
+            LOG.warn("Tag " + tag + " mapped to both " + existing + " and " + posTag + " in " + posTagMap.getPath() + ", keeping " + existing);
+        }
+      }
+    }
+
+    List<byte[]> tags = new ArrayList<>();
+    for (String tag : posTags.keySet()) {
+      byte[] bytes = tag.getBytes(StandardCharsets.UTF_8);
+      if (bytes.length > 0xFFFF)
+        throw new IOException("Tag too long: " + tag);
+      tags.add(bytes);
+    }
+    tags.sort(TagDictionary::compareBytes);
+
+    if (outFile.getParentFile() != null)
+      outFile.getParentFile().mkdirs();
+    try (OutputStream out = Files.newOutputStream(outFile.toPath())) {
+      DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+      data.writeInt(MAGIC);
+      data.writeInt(VERSION);
+      data.writeInt(tags.size());
+      int offset = 0;
+      for (byte[] tag : tags) {
+        data.writeLong(Morphology.parse(new String(tag, StandardCharsets.UTF_8)));
+        data.writeInt(offset);
+        offset += 2 + tag.length;
+      }
+      for (byte[] tag : tags) {
+        data.writeShort(tag.length);
+        data.write(tag);
+      }
+      data.flush();
+    }
+    LOG.info("Compiled " + tags.size() + " tags to " + outFile.getPath());
+  }
+
+  private static int compareBytes(byte[] a, byte[] b) {
+    int common = Math.min(a.length, b.length);
+    for (int i = 0; i < common; i++) {
+      int comparison = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (comparison != 0)
+        return comparison;
+    }
+    return a.length - b.length;
+  }
+
+  public static void main(String[] args) throws IOException {
+    Map<String, String> options = ConllLayout.parseArgs(args);
+    if (!options.containsKey("outFile") || !options.containsKey("posTagMaps"))
+      throw new IllegalArgumentException("Usage: TagDictionary --outFile=sr-tags.dict --posTagMaps=map1.txt,map2.txt");
+    List<File> posTagMaps = new ArrayList<>();
+    for (String posTagMap : options.get("posTagMaps").split(","))
+      posTagMaps.add(new File(posTagMap));
+    compile(posTagMaps, new File(options.get("outFile")));
+  }
+}
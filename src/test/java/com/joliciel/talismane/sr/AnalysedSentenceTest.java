@@ -0,0 +1,49 @@
+package com.joliciel.talismane.sr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AnalysedSentenceTest {
+  static final List<String> LINES = Arrays.asList("1\tNova\tnov\tA\tA\tA_qual_nom_sg_f_-\t3\tDepNAdj-nproj\t2\tDepNAdj", "2\tje\tbiti\tV\tV\t_\t0\t_\t0\troot",
+      "3\tknjiga\tknjiga\tN\tN\tN_com_nom_sg_f\t2\tSubj\t2\tSubj", "4\t_\t_\tPunct\tPunct\t_\t2\tPunct\t2\tPunct");
+
+  @Test
+  public void testConllRoundTrip() {
+    AnalysedSentence sentence = AnalysedSentence.readConll(LINES);
+    assertEquals(4, sentence.size());
+
+    StringBuilder sb = new StringBuilder();
+    sentence.writeConll(sb);
+    assertEquals(String.join("\n", LINES) + "\n\n", sb.toString());
+
+    StringBuilder again = new StringBuilder();
+    AnalysedSentence.readConll(Arrays.asList(sb.toString().trim().split("\n"))).writeConll(again);
+    assertEquals(sb.toString(), again.toString());
+  }
+
+  @Test
+  public void testJson() {
+    StringBuilder sb = new StringBuilder();
+    AnalysedSentence.readConll(LINES.subList(1, 2)).writeJson(sb);
+    assertEquals("[{\"id\":1,\"token\":\"je\",\"lemma\":\"biti\",\"posTag\":\"V\",\"morphology\":null,\"governor\":0,\"label\":\"root\",\"nonProjGovernor\":0,\"nonProjLabel\":null}]",
+        sb.toString());
+  }
+
+  @Test
+  public void testWeight() {
+    AnalysedSentence shorter = AnalysedSentence.readConll(LINES.subList(0, 2));
+    AnalysedSentence longer = AnalysedSentence.readConll(LINES);
+    assertTrue(shorter.getWeight() > 0);
+    assertTrue(longer.getWeight() > shorter.getWeight());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingColumns() {
+    AnalysedSentence.readConll(Arrays.asList("1\tje\tbiti\tV\tV\t_\t0\t_\t0"));
+  }
+}
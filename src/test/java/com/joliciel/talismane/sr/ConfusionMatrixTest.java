@@ -0,0 +1,93 @@
+package com.joliciel.talismane.sr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConfusionMatrixTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testMerge() {
+    ConfusionMatrix first = new ConfusionMatrix();
+    first.increment("subj", "subj");
+    first.increment("subj", "obj");
+    ConfusionMatrix second = new ConfusionMatrix();
+    second.increment("subj", "subj");
+    second.increment("obj", "obj");
+    second.increment("atr", "obj");
+
+    first.merge(second);
+
+    assertEquals(2, first.getCount("subj", "subj"));
+    assertEquals(1, first.getCount("subj", "obj"));
+    assertEquals(1, first.getCount("obj", "obj"));
+    assertEquals(1, first.getCount("atr", "obj"));
+    assertEquals(0, first.getCount("obj", "subj"));
+    assertEquals(new TreeSet<>(Arrays.asList("atr", "obj", "subj")), first.getLabels());
+
+    // the merged matrix is unchanged
+    assertEquals(1, second.getCount("subj", "subj"));
+    assertEquals(0, second.getCount("subj", "obj"));
+  }
+
+  @Test
+  public void testScores() {
+    ConfusionMatrix matrix = new ConfusionMatrix();
+    matrix.increment("subj", "subj");
+    matrix.increment("subj", "subj");
+    matrix.increment("subj", "obj");
+    matrix.increment("obj", "subj");
+
+    assertEquals(2.0 / 3.0, matrix.getPrecision("subj"), 0.0001);
+    assertEquals(2.0 / 3.0, matrix.getRecall("subj"), 0.0001);
+    assertEquals(2.0 / 3.0, matrix.getFScore("subj"), 0.0001);
+    assertEquals(0.0, matrix.getFScore("obj"), 0.0001);
+    assertEquals(0.5, matrix.getTotalFScore(), 0.0001);
+    assertEquals(0.0, new ConfusionMatrix().getTotalFScore(), 0.0001);
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    ConfusionMatrix matrix = new ConfusionMatrix();
+    matrix.increment("subj", "subj");
+    matrix.increment("subj", "subj");
+    matrix.increment("subj", "obj");
+    matrix.increment("obj", "atr");
+
+    File file = folder.newFile("matrix.tsv");
+    matrix.save(file);
+    ConfusionMatrix loaded = ConfusionMatrix.load(file);
+
+    assertEquals(matrix.getLabels(), loaded.getLabels());
+    for (String expected : matrix.getLabels()) {
+      for (String guessed : matrix.getLabels())
+        assertEquals(expected + "/" + guessed, matrix.getCount(expected, guessed), loaded.getCount(expected, guessed));
+    }
+
+    StringWriter original = new StringWriter();
+    matrix.save(original);
+    StringWriter reloaded = new StringWriter();
+    loaded.save(reloaded);
+    assertEquals(original.toString(), reloaded.toString());
+    assertEquals(original.toString(), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+  }
+
+  @Test(expected = IOException.class)
+  public void testLoadBadLine() throws IOException {
+    File file = folder.newFile("bad.tsv");
+    Files.write(file.toPath(), "subj\tobj\n".getBytes(StandardCharsets.UTF_8));
+    ConfusionMatrix.load(file);
+  }
+}
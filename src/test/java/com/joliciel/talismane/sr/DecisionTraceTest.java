@@ -0,0 +1,75 @@
+package com.joliciel.talismane.sr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+public class DecisionTraceTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Config getConfig(boolean enabled) throws IOException {
+    return ConfigFactory.parseString("talismane.serbian.trace {\n" + "enabled = " + enabled + "\n" + "dir = \""
+        + folder.getRoot().getPath().replace("\\", "/") + "\"\n" + "queue-size = 4\n" + "close-timeout = 10s\n" + "}");
+  }
+
+  @Test
+  public void testWriteAndPrint() throws IOException {
+    DecisionTrace trace = DecisionTrace.open(this.getConfig(true), "deprojectifier");
+    // more records than the queue holds
+    for (int i = 0; i < 10; i++)
+      trace.deprojectified(i, 3, 5, 1, -1, 2, -1, 1, "verb");
+    trace.evaluated(7, 3, 1, 5, "Dep-nproj", "Dep");
+    trace.deprojectified(8, 4, 6, -1, 2, -1, -1, 2, "between");
+    trace.close();
+    // closing twice does nothing
+    trace.close();
+
+    File file = new File(folder.getRoot(), "deprojectifier.trace");
+    StringWriter writer = new StringWriter();
+    try (InputStream in = Files.newInputStream(file.toPath())) {
+      DecisionTrace.print(in, writer);
+    }
+
+    StringBuilder expected = new StringBuilder();
+    expected.append("#type\tsentence\tadj\tprojHead\tverb\tbetween\tbefore\tafter\thead\treason\n");
+    for (int i = 0; i < 10; i++)
+      expected.append("deproj\t" + i + "\t3\t5\t1\t-1\t2\t-1\t1\tverb\n");
+    expected.append("#type\tsentence\ttoken\trealHead\tguessedHead\trealLabel\tguessedLabel\n");
+    expected.append("eval\t7\t3\t1\t5\tDep-nproj\tDep\n");
+    expected.append("deproj\t8\t4\t6\t-1\t2\t-1\t-1\t2\tbetween\n");
+    assertEquals(expected.toString(), writer.toString());
+  }
+
+  @Test
+  public void testNewFileName() throws IOException {
+    DecisionTrace.open(this.getConfig(true), "evaluator").close();
+    DecisionTrace.open(this.getConfig(true), "evaluator").close();
+    assertTrue(new File(folder.getRoot(), "evaluator.trace").exists());
+    assertTrue(new File(folder.getRoot(), "evaluator-1.trace").exists());
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    assertNull(DecisionTrace.open(this.getConfig(false), "deprojectifier"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testPrintNotATrace() throws IOException {
+    DecisionTrace.print(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }), new StringWriter());
+  }
+}
@@ -0,0 +1,73 @@
+package com.joliciel.talismane.sr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class MorphologyTest {
+
+  @Test
+  public void testParseParCoLabTag() {
+    long adjective = Morphology.parse("A_dem_acc_pl_f_-");
+    assertEquals(Morphology.bit(Morphology.GENDER, "f") | Morphology.bit(Morphology.NUMBER, "pl") | Morphology.bit(Morphology.CASE, "acc"), adjective);
+
+    long verb = Morphology.parse("V_aux_aor_1_pl_-_-");
+    assertEquals(Morphology.bit(Morphology.PERSON, "1") | Morphology.bit(Morphology.NUMBER, "pl") | Morphology.bit(Morphology.GENDER, "-"), verb);
+  }
+
+  @Test
+  public void testParseFeatures() {
+    long packed = Morphology.parse("g=m,n|n=sg|c=nom|p=3");
+    assertEquals(Morphology.bit(Morphology.GENDER, "m") | Morphology.bit(Morphology.GENDER, "n"), Morphology.getField(packed, Morphology.GENDER));
+    assertEquals(Morphology.pack(Arrays.asList("m", "n"), Arrays.asList("sg"), Arrays.asList("nom"), Arrays.asList("3")), packed);
+    assertEquals(packed, Morphology.parse("gender=m,n|number=sg|case=nom|person=3"));
+  }
+
+  @Test
+  public void testParseEmpty() {
+    assertEquals(0, Morphology.parse(null));
+    assertEquals(0, Morphology.parse(""));
+    assertEquals(0, Morphology.parse("_"));
+    assertEquals(0, Morphology.parse("Abr"));
+  }
+
+  @Test
+  public void testAgree() {
+    long masculineSingular = Morphology.parse("n=sg|g=m|c=nom");
+    long feminineSingular = Morphology.parse("n=sg|g=f|c=nom");
+    long masculinePlural = Morphology.parse("n=pl|g=m|c=nom");
+    long masculineGenitive = Morphology.parse("n=sg|g=m|c=gen");
+
+    assertTrue(Morphology.agree(masculineSingular, masculineSingular));
+    assertFalse(Morphology.agree(masculineSingular, feminineSingular));
+    assertFalse(Morphology.agree(masculineSingular, masculinePlural));
+    assertFalse(Morphology.agree(masculineSingular, masculineGenitive));
+
+    // an unspecified field agrees with anything
+    assertTrue(Morphology.agree(Morphology.parse("n=sg"), feminineSingular));
+    assertTrue(Morphology.agree(0, feminineSingular));
+    assertTrue(Morphology.agree(masculineSingular, 0));
+
+    // a head without gender ("-") takes no part in gender agreement
+    assertTrue(Morphology.agree(Morphology.parse("n=sg|g=-|c=nom"), feminineSingular));
+    assertFalse(Morphology.agree(Morphology.parse("n=sg|g=-|c=nom"), masculinePlural));
+  }
+
+  @Test
+  public void testAgreeAmbiguous() {
+    long masculine = Morphology.parse("n=sg|g=m|c=nom");
+    long feminine = Morphology.parse("n=sg|g=f|c=nom");
+    long neuter = Morphology.parse("n=sg|g=n|c=nom");
+
+    assertTrue(Morphology.agree(new long[] { masculine, neuter }, new long[] { feminine, neuter }));
+    assertFalse(Morphology.agree(new long[] { masculine }, new long[] { feminine, neuter }));
+    assertTrue(Morphology.agree(new long[0], new long[] { feminine }));
+    assertTrue(Morphology.agree(new long[] { masculine }, new long[0]));
+    assertEquals(0, Morphology.of(Collections.emptyList()).length);
+  }
+}
@@ -0,0 +1,121 @@
+package com.joliciel.talismane.sr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SentenceCacheTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static AnalysedSentence sentence(int tokens) {
+    return AnalysedSentence.readConll(AnalysedSentenceTest.LINES.subList(0, tokens));
+  }
+
+  private static byte[] fingerprint(String config) {
+    return config.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testKeys() {
+    SentenceCache cache = new SentenceCache(fingerprint("a"), 1000000, null);
+    assertEquals(cache.getKey("text", "Nova je knjiga."), cache.getKey("text", "Nova je knjiga."));
+    assertNotEquals(cache.getKey("text", "Nova je knjiga."), cache.getKey("tokens", "Nova je knjiga."));
+    assertNotEquals(cache.getKey("text", "Nova je knjiga."), new SentenceCache(fingerprint("b"), 1000000, null).getKey("text", "Nova je knjiga."));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedByWeight() {
+    AnalysedSentence first = sentence(2);
+    AnalysedSentence second = sentence(2);
+    AnalysedSentence third = sentence(2);
+    long weight = first.getWeight();
+    // room for two sentences, but not three
+    SentenceCache cache = new SentenceCache(fingerprint("a"), weight * 2 + weight / 2, null);
+
+    cache.put("first", first);
+    cache.put("second", second);
+    assertEquals(2, cache.size());
+    assertEquals(weight * 2, cache.getWeight());
+
+    // using the first sentence makes the second one the least recently used
+    assertSame(first, cache.get("first"));
+    cache.put("third", third);
+
+    assertEquals(2, cache.size());
+    assertEquals(weight * 2, cache.getWeight());
+    assertSame(first, cache.get("first"));
+    assertSame(third, cache.get("third"));
+    assertNull(cache.get("second"));
+    assertEquals(3, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testEvictsSeveralForHeavySentence() {
+    AnalysedSentence light = sentence(1);
+    AnalysedSentence heavy = sentence(4);
+    SentenceCache cache = new SentenceCache(fingerprint("a"), heavy.getWeight() + light.getWeight() / 2, null);
+
+    cache.put("light1", light);
+    cache.put("light2", sentence(1));
+    cache.put("heavy", heavy);
+
+    assertEquals(1, cache.size());
+    assertEquals(heavy.getWeight(), cache.getWeight());
+    assertSame(heavy, cache.get("heavy"));
+
+    // replacing a sentence does not count it twice
+    cache.put("heavy", heavy);
+    assertEquals(heavy.getWeight(), cache.getWeight());
+  }
+
+  @Test
+  public void testSkipsSentenceHeavierThanMemory() {
+    AnalysedSentence light = sentence(1);
+    SentenceCache cache = new SentenceCache(fingerprint("a"), light.getWeight(), null);
+    cache.put("light", light);
+    cache.put("heavy", sentence(4));
+
+    assertEquals(1, cache.size());
+    assertSame(light, cache.get("light"));
+    assertNull(cache.get("heavy"));
+  }
+
+  @Test
+  public void testDisk() {
+    File dir = folder.getRoot();
+    SentenceCache cache = new SentenceCache(fingerprint("a"), 0, dir);
+    String key = cache.getKey("text", "Nova je knjiga.");
+    AnalysedSentence sentence = sentence(4);
+    cache.put(key, sentence);
+    assertEquals(0, cache.size());
+    assertTrue(new File(new File(dir, key.substring(0, 2)), key + ".conll").isFile());
+
+    // a new cache, as in a later run
+    SentenceCache reopened = new SentenceCache(fingerprint("a"), 1000000, dir);
+    AnalysedSentence read = reopened.get(key);
+    assertNotNull(read);
+    StringBuilder expected = new StringBuilder();
+    sentence.writeConll(expected);
+    StringBuilder actual = new StringBuilder();
+    read.writeConll(actual);
+    assertEquals(expected.toString(), actual.toString());
+    assertEquals(1, reopened.getDiskHits());
+
+    // promoted to memory
+    assertEquals(1, reopened.size());
+    assertSame(read, reopened.get(key));
+    assertEquals(1, reopened.getHits());
+  }
+}
@@ -0,0 +1,62 @@
+package com.joliciel.talismane.sr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.typesafe.config.ConfigFactory;
+
+public class TagDictionaryTest {
+  private static final String[] TAGS = new String[] { "V_aux_aor_1_sg_-_-", "A_dem_acc_pl_f_-", "N_com_nom_sg_f", "Abr", "A_dem_acc_pl_m_-", "Č" };
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File compile() throws IOException {
+    File posTagMap = folder.newFile("posTagMap.txt");
+    StringBuilder sb = new StringBuilder("Morphology\n");
+    for (String tag : TAGS)
+      sb.append(tag).append('\t').append(tag.split("_")[0]).append('\n');
+    // a tag repeated in a map is only kept once
+    sb.append(TAGS[0]).append("\tV\n");
+    Files.write(posTagMap.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    File outFile = new File(folder.getRoot(), "tags.dict");
+    TagDictionary.compile(Arrays.asList(posTagMap), outFile);
+    return outFile;
+  }
+
+  @Test
+  public void testFind() throws IOException {
+    TagDictionary dictionary = TagDictionary.load(this.compile());
+    assertEquals(TAGS.length, dictionary.size());
+    for (String tag : TAGS) {
+      int index = dictionary.find(tag);
+      assertTrue(tag, index >= 0);
+      assertEquals(tag, Morphology.parse(tag), dictionary.getMorphology(index));
+      assertEquals(tag, Morphology.parse(tag), Morphology.parse(tag, dictionary));
+    }
+    assertEquals(-1, dictionary.find("N_com_gen_sg_f"));
+    assertEquals(-1, dictionary.find(""));
+    assertEquals(-1, dictionary.find("Ž"));
+    // unknown tags are parsed instead
+    assertEquals(Morphology.parse("N_com_gen_sg_f"), Morphology.parse("N_com_gen_sg_f", dictionary));
+  }
+
+  @Test
+  public void testOpen() throws IOException {
+    File file = this.compile();
+    assertEquals(TAGS.length, TagDictionary.open(ConfigFactory.parseString("talismane.serbian.tag-dictionary = \"" + file.getPath().replace("\\", "/") + "\"")).size());
+    assertNull(TagDictionary.open(ConfigFactory.parseString("talismane.serbian.tag-dictionary = \"\"")));
+    assertNull(TagDictionary.open(ConfigFactory.parseString("talismane.serbian.tag-dictionary = \"" + folder.getRoot().getPath().replace("\\", "/") + "/missing.dict\"")));
+  }
+}